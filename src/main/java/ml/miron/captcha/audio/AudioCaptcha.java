@@ -1,12 +1,14 @@
 package ml.miron.captcha.audio;
 
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
 
+import ml.miron.captcha.audio.effect.AudioEffect;
+import ml.miron.captcha.audio.effect.EffectChain;
 import ml.miron.captcha.image.producer.NumbersAnswerProducer;
 import ml.miron.captcha.util.MixerUtil;
+import ml.miron.captcha.util.RandomSource;
 import ml.miron.captcha.audio.producer.RandomNoiseProducer;
 import ml.miron.captcha.audio.producer.NoiseProducer;
 import ml.miron.captcha.audio.producer.NumberVoiceProducer;
@@ -22,6 +24,8 @@ import ml.miron.captcha.image.producer.TextProducer;
  * AudioCaptcha ac = new AudioCaptcha.Builder()
  *   .addAnswer()
  *   .addNoise()
+ *   .addEffect(new SpeedJitterEffect())
+ *   .addEffect(new EchoEffect())
  *   .build();
  * </pre>
  * <p>
@@ -34,8 +38,6 @@ import ml.miron.captcha.image.producer.TextProducer;
  */
 public final class AudioCaptcha {
 
-    private static final Random RAND = new SecureRandom();
-
     private final Builder builder;
 
     /**
@@ -55,13 +57,26 @@ public final class AudioCaptcha {
         private Sample challenge;
         private List<VoiceProducer> voiceProds;
         private List<NoiseProducer> noiseProds;
+        private List<AudioEffect> effects;
+        private final RandomSource random;
 
         /**
-         * Creates a {@link AudioCaptcha.Builder} with empty voice and noise lists.
+         * Creates a {@link AudioCaptcha.Builder} with empty voice, noise and effect lists.
          */
         public Builder() {
+            this(RandomSource.getDefault());
+        }
+
+        /**
+         * Creates a {@link AudioCaptcha.Builder} with empty voice, noise and effect lists and specified
+         * source of randomness, which is also used by the default answer, voice and noise producers.
+         * @param random the instance of {@link RandomSource}.
+         */
+        public Builder(RandomSource random) {
             voiceProds = new ArrayList<VoiceProducer>();
             noiseProds = new ArrayList<NoiseProducer>();
+            effects = new ArrayList<AudioEffect>();
+            this.random = random;
         }
 
         /**
@@ -69,7 +84,7 @@ public final class AudioCaptcha {
          * @return the current instance of {@link AudioCaptcha.Builder}.
          */
         public Builder addAnswer() {
-            return addAnswer(new NumbersAnswerProducer());
+            return addAnswer(new NumbersAnswerProducer(random));
         }
 
         /**
@@ -87,7 +102,7 @@ public final class AudioCaptcha {
          * @return the current instance of {@link AudioCaptcha.Builder}.
          */
         public Builder addVoice() {
-            voiceProds.add(new NumberVoiceProducer());
+            voiceProds.add(new NumberVoiceProducer(random));
             return this;
         }
 
@@ -106,7 +121,7 @@ public final class AudioCaptcha {
          * @return the current instance of {@link AudioCaptcha.Builder}.
          */
         public Builder addNoise() {
-            return addNoise(new RandomNoiseProducer());
+            return addNoise(new RandomNoiseProducer(random));
         }
 
         /**
@@ -119,6 +134,17 @@ public final class AudioCaptcha {
             return this;
         }
 
+        /**
+         * Add the given {@link AudioEffect} to the voices. The effects are applied in the order they
+         * are added, before the noise.
+         * @param effect the instance of {@link AudioEffect}.
+         * @return the current instance of {@link AudioCaptcha.Builder}.
+         */
+        public Builder addEffect(AudioEffect effect) {
+            effects.add(effect);
+            return this;
+        }
+
         /**
          * Builds the captcha. This method should always be called,
          * and should always be called last.
@@ -140,20 +166,25 @@ public final class AudioCaptcha {
             for (char c : answerArray) {
                 // Create Sample for this character from one of the
                 // VoiceProducers
-                vProd = voiceProds.get(RAND.nextInt(voiceProds.size()));
+                vProd = voiceProds.get(random.fast().nextInt(voiceProds.size()));
                 sample = vProd.getVocalization(c);
                 samples.add(sample);
             }
 
+            // Apply the effects, if any, which also glue the samples together
+            if (!effects.isEmpty()) {
+                samples = Collections.singletonList(EffectChain.apply(samples, effects));
+            }
+
             // 3. Add noise, if any, and return the result
-            if (noiseProds.isEmpty()) {
-                NoiseProducer nProd = noiseProds.get(RAND.nextInt(noiseProds.size()));
+            if (!noiseProds.isEmpty()) {
+                NoiseProducer nProd = noiseProds.get(random.fast().nextInt(noiseProds.size()));
                 challenge = nProd.addNoise(samples);
 
                 return new AudioCaptcha(this);
             }
 
-            challenge = MixerUtil.append(samples);
+            challenge = effects.isEmpty() ? MixerUtil.append(samples) : samples.get(0);
 
             return new AudioCaptcha(this);
         }
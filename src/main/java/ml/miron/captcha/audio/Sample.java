@@ -1,6 +1,10 @@
 package ml.miron.captcha.audio;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,6 +25,10 @@ import javax.sound.sampled.*;
  * Data files in other formats will cause an
  * <code>IllegalArgumentException</code> to be thrown.
  * </p>
+ * <p>
+ * A sample holds either an audio stream or 16-bit PCM data. The stream is decoded into PCM
+ * data on first use by {@link #getPcm()}; from then on the PCM data backs the sample.
+ * </p>
  *
  * @author <a href="mailto:james.childers@gmail.com">James Childers</a>
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
@@ -31,7 +39,11 @@ public class Sample {
 
     public static final AudioFormat SC_AUDIO_FORMAT = new AudioFormat(16000, 16, 1, true, false);
 
-    private final AudioInputStream audioInputStream;
+    private static final int PCM_SCALE = 1 << 15;
+
+    private AudioInputStream audioInputStream;
+    private ShortBuffer pcm;
+    private Decoder decoder;
 
     /**
      * Creates a {@link Sample} with defined input stream.
@@ -55,10 +67,22 @@ public class Sample {
     }
 
     /**
-     * Returns audio stream.
+     * Creates a {@link Sample} in {@link #SC_AUDIO_FORMAT} backed by the remaining PCM data of the buffer.
+     * The data is not copied and must not be modified afterwards.
+     * @param pcm PCM data.
+     */
+    public Sample(ShortBuffer pcm) {
+        this.pcm = pcm.slice();
+    }
+
+    /**
+     * Returns audio stream. The stream of a sample backed by PCM data is a new one on every call.
      * @return see description.
      */
     public AudioInputStream getAudioInputStream() {
+        if (pcm != null) {
+            return new AudioInputStream(new ByteArrayInputStream(asByteArray()), SC_AUDIO_FORMAT, pcm.capacity());
+        }
         return audioInputStream;
     }
 
@@ -67,7 +91,27 @@ public class Sample {
      * @return see description.
      */
     public AudioFormat getFormat() {
-        return audioInputStream.getFormat();
+        return pcm != null ? SC_AUDIO_FORMAT : audioInputStream.getFormat();
+    }
+
+    /**
+     * Returns the PCM data of the sample, decoding the audio stream on first call.
+     * The returned buffer is a new read-only view, so its position and limit are free to change.
+     * @return see description.
+     */
+    public ShortBuffer getPcm() {
+        if (pcm == null) {
+            checkFormat(audioInputStream.getFormat());
+            short[] data = new short[(int) getSampleCount()];
+            try {
+                ByteBuffer.wrap(readBytes(data.length * 2)).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(data);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not decode the audio stream.", e);
+            }
+            pcm = ShortBuffer.wrap(data);
+            audioInputStream = null;
+        }
+        return pcm.asReadOnlyBuffer();
     }
 
     /**
@@ -75,6 +119,9 @@ public class Sample {
      * @return see description.
      */
     public long getSampleCount() {
+        if (pcm != null) {
+            return pcm.capacity();
+        }
         long total = (audioInputStream.getFrameLength()
                 * getFormat().getFrameSize() * 8)
                 / getFormat().getSampleSizeInBits();
@@ -112,20 +159,18 @@ public class Sample {
      */
     public double[] getInterleavedSamples(long begin, long end, double[] samples) throws IOException {
         long nbSamples = end - begin;
+        if (pcm != null) {
+            for (int i = 0; i < nbSamples; i++) {
+                samples[i] = (double) pcm.get((int) begin + i) / PCM_SCALE;
+            }
+            return samples;
+        }
         long nbBytes = nbSamples * (getFormat().getSampleSizeInBits() / 8) * getFormat().getChannels();
         if (nbBytes > Integer.MAX_VALUE) {
             throw new IllegalArgumentException("Too many samples. Try using a smaller wav.");
         }
-        // read bytes from audio file
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        byte[] inBuffer = new byte[(int) nbBytes];
-        while ((nRead = audioInputStream.read(inBuffer, 0, inBuffer.length)) != -1) {
-            buffer.write(inBuffer, 0, nRead);
-        }
-        buffer.flush();
         // decode bytes into samples.
-        decodeBytes(buffer.toByteArray(), samples);
+        decodeBytes(readBytes((int) nbBytes), samples);
 
         return samples;
     }
@@ -162,40 +207,16 @@ public class Sample {
     }
 
     /**
-     * Decodes bytes of audioBytes into audioSamples.
+     * Decodes bytes of audioBytes into audioSamples. The decoder is chosen once
+     * per sample by the format of its audio stream.
      * @param audioBytes bytes of audio.
      * @param audioSamples array of audio samples.
      */
     public void decodeBytes(byte[] audioBytes, double[] audioSamples) {
-        int sampleSizeInBytes = getFormat().getSampleSizeInBits() / 8;
-        int[] sampleBytes = new int[sampleSizeInBytes];
-        int k = 0;
-        for (int i = 0; i < audioSamples.length; i++) {
-            // collect sample byte in big-endian order
-            if (getFormat().isBigEndian()) {
-                // bytes start with MSB
-                for (int j = 0; j < sampleSizeInBytes; j++) {
-                    sampleBytes[j] = audioBytes[k++];
-                }
-            } else {
-                // bytes start with LSB
-                for (int j = sampleSizeInBytes - 1; j >= 0; j--) {
-                    sampleBytes[j] = audioBytes[k++];
-                }
-            }
-            // get integer value from bytes
-            int ival = 0;
-            for (int j = 0; j < sampleSizeInBytes; j++) {
-                ival += sampleBytes[j];
-                if (j < sampleSizeInBytes - 1) {
-                    ival <<= 8;
-                }
-            }
-            // decode value
-            double ratio = Math.pow(2., getFormat().getSampleSizeInBits() - 1);
-            double val = ((double) ival) / ratio;
-            audioSamples[i] = val;
+        if (decoder == null) {
+            decoder = Decoder.of(getFormat());
         }
+        decoder.decode(audioBytes, audioSamples, getFormat());
     }
 
     /**
@@ -203,7 +224,12 @@ public class Sample {
      * @return The interleaved samples.
      */
     public final byte[] asByteArray() {
-        return asByteArray(getSampleCount(), getInterleavedSamples());
+        if (pcm == null) {
+            getPcm();
+        }
+        byte[] buffer = new byte[pcm.capacity() * 2];
+        ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(pcm.duplicate());
+        return buffer;
     }
 
     /**
@@ -234,10 +260,110 @@ public class Sample {
                 + getFormat();
     }
 
+    /**
+     * Reads up to <code>length</code> bytes of the audio stream, straight into the returned array.
+     */
+    private byte[] readBytes(int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int count = 0;
+        int nRead;
+        while (count < length && (nRead = audioInputStream.read(buffer, count, length - count)) != -1) {
+            count += nRead;
+        }
+        return count < length ? Arrays.copyOf(buffer, count) : buffer;
+    }
+
     private static void checkFormat(AudioFormat af) {
         if (!af.matches(SC_AUDIO_FORMAT)) {
             throw new IllegalArgumentException("Unsupported audio format.\nReceived: " + af.toString()
                     + "\nExpected: " + SC_AUDIO_FORMAT);
         }
     }
+
+    /**
+     * Decoders of the supported sample formats to <code>double</code> values.
+     */
+    private enum Decoder {
+
+        PCM_16_LITTLE_ENDIAN {
+            @Override
+            void decode(byte[] bytes, double[] samples, AudioFormat format) {
+                decode16(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer(), samples);
+            }
+        },
+
+        PCM_16_BIG_ENDIAN {
+            @Override
+            void decode(byte[] bytes, double[] samples, AudioFormat format) {
+                decode16(ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).asShortBuffer(), samples);
+            }
+        },
+
+        PCM_8_SIGNED {
+            @Override
+            void decode(byte[] bytes, double[] samples, AudioFormat format) {
+                for (int i = 0, n = Math.min(bytes.length, samples.length); i < n; i++) {
+                    samples[i] = bytes[i] * (1.0 / 128);
+                }
+            }
+        },
+
+        PCM_8_UNSIGNED {
+            @Override
+            void decode(byte[] bytes, double[] samples, AudioFormat format) {
+                for (int i = 0, n = Math.min(bytes.length, samples.length); i < n; i++) {
+                    samples[i] = ((bytes[i] & 0xff) - 128) * (1.0 / 128);
+                }
+            }
+        },
+
+        /**
+         * Any other integer sample size, assembled byte by byte.
+         */
+        GENERIC {
+            @Override
+            void decode(byte[] bytes, double[] samples, AudioFormat format) {
+                int size = format.getSampleSizeInBits() / 8;
+                boolean bigEndian = format.isBigEndian();
+                double scale = 1.0 / (1L << (format.getSampleSizeInBits() - 1));
+                for (int i = 0, k = 0, n = Math.min(bytes.length / size, samples.length); i < n; i++, k += size) {
+                    // the most significant byte carries the sign
+                    int value = bigEndian ? bytes[k] : bytes[k + size - 1];
+                    for (int j = 1; j < size; j++) {
+                        value = (value << 8) | (bytes[bigEndian ? k + j : k + size - 1 - j] & 0xff);
+                    }
+                    samples[i] = value * scale;
+                }
+            }
+        };
+
+        // Bulk transfers are cheap, and the conversion of a plain array vectorizes
+        private static final int CHUNK_SIZE = 4096;
+
+        abstract void decode(byte[] bytes, double[] samples, AudioFormat format);
+
+        static Decoder of(AudioFormat format) {
+            boolean signed = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding());
+            switch (format.getSampleSizeInBits()) {
+                case 16:
+                    return format.isBigEndian() ? PCM_16_BIG_ENDIAN : PCM_16_LITTLE_ENDIAN;
+                case 8:
+                    return signed ? PCM_8_SIGNED : PCM_8_UNSIGNED;
+                default:
+                    return GENERIC;
+            }
+        }
+
+        private static void decode16(ShortBuffer in, double[] samples) {
+            short[] chunk = new short[Math.min(CHUNK_SIZE, samples.length)];
+            int total = Math.min(in.remaining(), samples.length);
+            for (int offset = 0; offset < total; offset += chunk.length) {
+                int n = Math.min(chunk.length, total - offset);
+                in.get(chunk, 0, n);
+                for (int i = 0; i < n; i++) {
+                    samples[offset + i] = chunk[i] * (1.0 / PCM_SCALE);
+                }
+            }
+        }
+    }
 }
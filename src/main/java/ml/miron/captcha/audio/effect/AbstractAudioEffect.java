@@ -0,0 +1,71 @@
+package ml.miron.captcha.audio.effect;
+
+import ml.miron.captcha.audio.Sample;
+import ml.miron.captcha.util.RandomSource;
+
+/**
+ * Base class of the audio effects, which neither change the symbols nor the samples by default.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public abstract class AbstractAudioEffect implements AudioEffect {
+
+    private static final double SAMPLES_PER_MILLISECOND = Sample.SC_AUDIO_FORMAT.getSampleRate() / 1000;
+    private static final Processor NONE = new Processor() {
+        @Override
+        public void process(float[] block, int length) {
+        }
+    };
+
+    private final RandomSource random;
+
+    /**
+     * Creates an {@link AbstractAudioEffect} with specified source of randomness.
+     * @param random the instance of {@link RandomSource}.
+     */
+    protected AbstractAudioEffect(RandomSource random) {
+        this.random = random;
+    }
+
+    @Override
+    public double getRate(int index) {
+        return 1;
+    }
+
+    @Override
+    public int getPause(int index) {
+        return 0;
+    }
+
+    @Override
+    public Processor start(int length) {
+        return NONE;
+    }
+
+    /**
+     * Returns the source of randomness of the effect.
+     * @return see description.
+     */
+    protected RandomSource getRandom() {
+        return random;
+    }
+
+    /**
+     * Returns a random value between <code>min</code> (included) and <code>max</code> (excluded).
+     * @param min minimum value.
+     * @param max maximum value.
+     * @return see description.
+     */
+    protected double nextDouble(double min, double max) {
+        return min + random.fast().nextDouble() * (max - min);
+    }
+
+    /**
+     * Converts a duration to a number of samples of {@link Sample#SC_AUDIO_FORMAT}.
+     * @param millis duration in milliseconds.
+     * @return see description.
+     */
+    protected static int toSamples(double millis) {
+        return (int) Math.round(millis * SAMPLES_PER_MILLISECOND);
+    }
+}
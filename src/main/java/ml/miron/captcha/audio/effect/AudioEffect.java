@@ -0,0 +1,51 @@
+package ml.miron.captcha.audio.effect;
+
+/**
+ * Base interface for the audio effects, which are applied to the spoken symbols of a captcha by an {@link EffectChain}.
+ * <p>
+ * Before a clip is processed, every effect is asked for the playback rate of each symbol and for the silence
+ * put before it. Then the effect is started with the length of the clip, and the {@link Processor} it returns
+ * gets the clip block by block, in order. The state of a clip is kept by its processor, so an effect can be
+ * shared by several threads without keeping anything per thread.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public interface AudioEffect {
+
+    /**
+     * Returns the playback rate of a symbol: above 1 raises its pitch and shortens it, below 1 lowers its pitch
+     * and lengthens it. The rates of all effects are multiplied.
+     * @param index index of the symbol in the answer.
+     * @return see description.
+     */
+    public double getRate(int index);
+
+    /**
+     * Returns the number of samples of silence put before a symbol. The pauses of all effects are added.
+     * @param index index of the symbol in the answer.
+     * @return see description.
+     */
+    public int getPause(int index);
+
+    /**
+     * Starts processing a new clip.
+     * @param length length of the clip in samples.
+     * @return processor of the clip, used by a single thread.
+     */
+    public Processor start(int length);
+
+    /**
+     * Processes a single clip and keeps its state.
+     */
+    public interface Processor {
+
+        /**
+         * Processes the next block of the clip in place. The samples are in the range from -1 to 1;
+         * values beyond it are clipped when the clip is written.
+         * @param block samples of the block.
+         * @param length number of samples in the block, at most {@link EffectChain#BLOCK_SIZE}.
+         */
+        public void process(float[] block, int length);
+    }
+}
@@ -0,0 +1,101 @@
+package ml.miron.captcha.audio.effect;
+
+import java.util.Random;
+
+import ml.miron.captcha.audio.Sample;
+import ml.miron.captcha.util.RandomSource;
+
+/**
+ * Adds white noise passed through a band-pass filter with a random center frequency within the
+ * band of speech, where it masks the voice better than a broadband noise of the same level.
+ * <p>
+ * The filter is a biquad with a peak gain of 1, see the "Audio EQ Cookbook" by Robert Bristow-Johnson.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public class BandNoiseEffect extends AbstractAudioEffect {
+
+    private static final double SAMPLE_RATE = Sample.SC_AUDIO_FORMAT.getSampleRate();
+
+    private final float level;
+    private final double minFrequency;
+    private final double maxFrequency;
+    private final double q;
+
+    /**
+     * Creates a {@link BandNoiseEffect} with level 0.15, center frequencies from 300 to 3000 Hz and Q of 2.
+     */
+    public BandNoiseEffect() {
+        this(0.15, 300, 3000, 2, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link BandNoiseEffect} with specified level, center frequencies, Q and source of randomness.
+     * @param level peak amplitude of the white noise before filtering.
+     * @param minFrequency minimum center frequency in Hz.
+     * @param maxFrequency maximum center frequency in Hz, below the half of the sample rate.
+     * @param q quality factor of the filter, the higher the narrower the band.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public BandNoiseEffect(double level, double minFrequency, double maxFrequency, double q, RandomSource random) {
+        super(random);
+        if (level < 0 || minFrequency <= 0 || maxFrequency < minFrequency || maxFrequency >= SAMPLE_RATE / 2
+                || q <= 0) {
+            throw new IllegalArgumentException("Invalid level, frequencies or Q.");
+        }
+        this.level = (float) level;
+        this.minFrequency = minFrequency;
+        this.maxFrequency = maxFrequency;
+        this.q = q;
+    }
+
+    @Override
+    public Processor start(int length) {
+        double w0 = 2 * Math.PI * nextDouble(minFrequency, maxFrequency) / SAMPLE_RATE;
+        double alpha = Math.sin(w0) / (2 * q);
+        double a0 = 1 + alpha;
+        return new BandNoiseProcessor((float) (alpha / a0), (float) (-2 * Math.cos(w0) / a0),
+                (float) ((1 - alpha) / a0));
+    }
+
+    private final class BandNoiseProcessor implements Processor {
+
+        private final float b0;
+        private final float a1;
+        private final float a2;
+        private float x1;
+        private float x2;
+        private float y1;
+        private float y2;
+
+        BandNoiseProcessor(float b0, float a1, float a2) {
+            this.b0 = b0;
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        @Override
+        public void process(float[] block, int length) {
+            Random rand = getRandom().fast();
+            float x1 = this.x1;
+            float x2 = this.x2;
+            float y1 = this.y1;
+            float y2 = this.y2;
+            for (int i = 0; i < length; i++) {
+                float x = (rand.nextFloat() * 2 - 1) * level;
+                // b1 is 0 and b2 is -b0 for a band-pass
+                float y = b0 * (x - x2) - a1 * y1 - a2 * y2;
+                x2 = x1;
+                x1 = x;
+                y2 = y1;
+                y1 = y;
+                block[i] += y;
+            }
+            this.x1 = x1;
+            this.x2 = x2;
+            this.y1 = y1;
+            this.y2 = y2;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ml.miron.captcha.audio.effect;
+
+import ml.miron.captcha.util.RandomSource;
+
+/**
+ * Adds a decaying echo of random delay and strength, which smears the symbols into each other.
+ * <p>
+ * The echo is a feedback delay line, allocated for every clip as long as its delay.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public class EchoEffect extends AbstractAudioEffect {
+
+    private final int minDelay;
+    private final int maxDelay;
+    private final double minDecay;
+    private final double maxDecay;
+
+    /**
+     * Creates an {@link EchoEffect} with delays from 60 to 180 ms and decays from 0.2 to 0.45.
+     */
+    public EchoEffect() {
+        this(60, 180, 0.2, 0.45, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates an {@link EchoEffect} with specified delays, decays and source of randomness.
+     * @param minDelay minimum delay in milliseconds.
+     * @param maxDelay maximum delay in milliseconds.
+     * @param minDecay minimum ratio of the echo to the sound.
+     * @param maxDecay maximum ratio of the echo to the sound, less than 1.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public EchoEffect(double minDelay, double maxDelay, double minDecay, double maxDecay, RandomSource random) {
+        super(random);
+        if (toSamples(minDelay) < 1 || maxDelay < minDelay || minDecay < 0 || maxDecay < minDecay || maxDecay >= 1) {
+            throw new IllegalArgumentException("Invalid delays or decays.");
+        }
+        this.minDelay = toSamples(minDelay);
+        this.maxDelay = toSamples(maxDelay);
+        this.minDecay = minDecay;
+        this.maxDecay = maxDecay;
+    }
+
+    @Override
+    public Processor start(int length) {
+        int delay = minDelay + getRandom().fast().nextInt(maxDelay - minDelay + 1);
+        return new EchoProcessor(delay, (float) nextDouble(minDecay, maxDecay));
+    }
+
+    private static final class EchoProcessor implements Processor {
+
+        private final float[] line;
+        private final float decay;
+        private int position;
+
+        EchoProcessor(int delay, float decay) {
+            this.line = new float[delay];
+            this.decay = decay;
+        }
+
+        @Override
+        public void process(float[] block, int length) {
+            float[] line = this.line;
+            int delay = line.length;
+            int position = this.position;
+            for (int i = 0; i < length; i++) {
+                float value = block[i] + line[position] * decay;
+                line[position] = value;
+                block[i] = value;
+                if (++position == delay) {
+                    position = 0;
+                }
+            }
+            this.position = position;
+        }
+    }
+}
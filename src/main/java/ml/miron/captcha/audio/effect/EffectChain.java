@@ -0,0 +1,144 @@
+package ml.miron.captcha.audio.effect;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import ml.miron.captcha.audio.Sample;
+
+/**
+ * Applies {@link AudioEffect}s to the spoken symbols of a captcha.
+ * <p>
+ * The symbols are glued together, with the pauses of the effects before them, and resampled at the rates of
+ * the effects by linear interpolation. The result is passed through the effects in blocks of
+ * {@link #BLOCK_SIZE} samples, in the order of the list, and every block is clipped straight into the
+ * resulting clip. Besides the PCM data of the clip only a block and the bookkeeping of the symbols are
+ * allocated per clip, nothing is kept by the threads, and the cost is linear in the length of the clip.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class EffectChain {
+
+    /**
+     * Number of samples processed by an effect at once.
+     */
+    public static final int BLOCK_SIZE = 512;
+
+    private static final float PCM_SCALE = 1 << 15;
+
+    private EffectChain() {
+    }
+
+    /**
+     * Glues the symbols together and applies the effects.
+     * @param symbols list of {@link Sample}, one per spoken symbol.
+     * @param effects list of {@link AudioEffect}, applied in order.
+     * @return processed sample.
+     */
+    public static Sample apply(List<Sample> symbols, List<AudioEffect> effects) {
+        int count = symbols.size();
+        ShortBuffer[] pcms = new ShortBuffer[count];
+        double[] rates = new double[count];
+        int[] pauses = new int[count];
+        int[] lengths = new int[count];
+
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            pcms[i] = symbols.get(i).getPcm();
+            double rate = 1;
+            int pause = 0;
+            for (AudioEffect effect : effects) {
+                rate *= effect.getRate(i);
+                pause += effect.getPause(i);
+            }
+            if (!(rate > 0) || pause < 0) {
+                throw new IllegalStateException("Invalid rate " + rate + " or pause " + pause + " of symbol " + i);
+            }
+            int length = pcms[i].remaining();
+            rates[i] = rate;
+            pauses[i] = pause;
+            lengths[i] = length == 0 ? 0 : (int) ((length - 1) / rate) + 1;
+            total += pause + lengths[i];
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many samples: " + total);
+        }
+
+        short[] processed = new short[(int) total];
+        AudioEffect.Processor[] processors = new AudioEffect.Processor[effects.size()];
+        for (int i = 0; i < processors.length; i++) {
+            processors[i] = effects.get(i).start(processed.length);
+        }
+        float[] block = new float[BLOCK_SIZE];
+        short[] chunk = new short[BLOCK_SIZE];
+        // Position in the symbols: the current symbol, the silence left before it and the next sample of it
+        int symbol = 0;
+        int silence = count > 0 ? pauses[0] : 0;
+        int index = 0;
+        for (int offset = 0; offset < processed.length; offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, processed.length - offset);
+            // Fill the block with runs of silence and of the symbols
+            for (int j = 0; j < length; ) {
+                if (silence > 0) {
+                    int n = Math.min(silence, length - j);
+                    Arrays.fill(block, j, j + n, 0);
+                    silence -= n;
+                    j += n;
+                } else if (index == lengths[symbol]) {
+                    symbol++;
+                    silence = pauses[symbol];
+                    index = 0;
+                } else {
+                    int n = Math.min(lengths[symbol] - index, length - j);
+                    if (rates[symbol] == 1) {
+                        ShortBuffer pcm = pcms[symbol];
+                        pcm.position(index);
+                        pcm.get(chunk, 0, n);
+                        for (int k = 0; k < n; k++) {
+                            block[j + k] = chunk[k] / PCM_SCALE;
+                        }
+                    } else {
+                        resample(pcms[symbol], rates[symbol], index, block, j, n);
+                    }
+                    index += n;
+                    j += n;
+                }
+            }
+            for (AudioEffect.Processor processor : processors) {
+                processor.process(block, length);
+            }
+            for (int j = 0; j < length; j++) {
+                processed[offset + j] = clip(block[j] * PCM_SCALE);
+            }
+        }
+        return new Sample(ShortBuffer.wrap(processed));
+    }
+
+    /**
+     * Interpolates <code>length</code> samples of the symbol played at the given rate into the block,
+     * from the sample with the given index.
+     */
+    private static void resample(ShortBuffer pcm, double rate, int index, float[] block, int offset, int length) {
+        int last = pcm.limit() - 1;
+        for (int k = 0; k < length; k++) {
+            double position = (index + k) * rate;
+            int i = (int) position;
+            float value = pcm.get(i);
+            if (i < last) {
+                value += (pcm.get(i + 1) - value) * (float) (position - i);
+            }
+            block[offset + k] = value / PCM_SCALE;
+        }
+    }
+
+    private static short clip(float value) {
+        if (value >= Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (value <= Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) value;
+    }
+}
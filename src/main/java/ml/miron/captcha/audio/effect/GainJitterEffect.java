@@ -0,0 +1,79 @@
+package ml.miron.captcha.audio.effect;
+
+import java.util.Random;
+
+import ml.miron.captcha.util.RandomSource;
+
+/**
+ * Varies the volume of the clip: the gain glides to a new random value every period, so the
+ * loudness of the symbols and within them keeps changing.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public class GainJitterEffect extends AbstractAudioEffect {
+
+    private final double minGain;
+    private final double maxGain;
+    private final int period;
+
+    /**
+     * Creates a {@link GainJitterEffect} with gains from 0.5 to 1.2, changed every 250 ms.
+     */
+    public GainJitterEffect() {
+        this(0.5, 1.2, 250, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link GainJitterEffect} with specified gains, period and source of randomness.
+     * @param minGain minimum gain.
+     * @param maxGain maximum gain.
+     * @param period period of the changes in milliseconds.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public GainJitterEffect(double minGain, double maxGain, double period, RandomSource random) {
+        super(random);
+        if (minGain < 0 || maxGain < minGain || toSamples(period) < 1) {
+            throw new IllegalArgumentException("Invalid gains or period.");
+        }
+        this.minGain = minGain;
+        this.maxGain = maxGain;
+        this.period = toSamples(period);
+    }
+
+    @Override
+    public Processor start(int length) {
+        return new GainProcessor((float) nextDouble(minGain, maxGain));
+    }
+
+    private final class GainProcessor implements Processor {
+
+        private float gain;
+        private float step;
+        private int remaining;
+
+        GainProcessor(float gain) {
+            this.gain = gain;
+        }
+
+        @Override
+        public void process(float[] block, int length) {
+            Random rand = getRandom().fast();
+            float gain = this.gain;
+            float step = this.step;
+            int remaining = this.remaining;
+            for (int i = 0; i < length; i++) {
+                if (remaining == 0) {
+                    float target = (float) (minGain + rand.nextDouble() * (maxGain - minGain));
+                    step = (target - gain) / period;
+                    remaining = period;
+                }
+                gain += step;
+                remaining--;
+                block[i] *= gain;
+            }
+            this.gain = gain;
+            this.step = step;
+            this.remaining = remaining;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ml.miron.captcha.audio.effect;
+
+import ml.miron.captcha.util.RandomSource;
+
+/**
+ * Puts silence of random length between the symbols, so that they are not evenly spaced.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public class PauseEffect extends AbstractAudioEffect {
+
+    private final int minPause;
+    private final int maxPause;
+
+    /**
+     * Creates a {@link PauseEffect} with pauses from 50 to 400 ms.
+     */
+    public PauseEffect() {
+        this(50, 400, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link PauseEffect} with specified pauses and source of randomness.
+     * @param minPause minimum pause in milliseconds.
+     * @param maxPause maximum pause in milliseconds.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public PauseEffect(double minPause, double maxPause, RandomSource random) {
+        super(random);
+        if (minPause < 0 || maxPause < minPause) {
+            throw new IllegalArgumentException("Invalid pauses.");
+        }
+        this.minPause = toSamples(minPause);
+        this.maxPause = toSamples(maxPause);
+    }
+
+    @Override
+    public int getPause(int index) {
+        return index == 0 ? 0 : minPause + getRandom().fast().nextInt(maxPause - minPause + 1);
+    }
+}
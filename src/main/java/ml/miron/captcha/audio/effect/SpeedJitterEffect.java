@@ -0,0 +1,38 @@
+package ml.miron.captcha.audio.effect;
+
+import ml.miron.captcha.util.RandomSource;
+
+/**
+ * Plays every symbol at a random rate, which changes its pitch and tempo together.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public class SpeedJitterEffect extends AbstractAudioEffect {
+
+    private final double maxDeviation;
+
+    /**
+     * Creates a {@link SpeedJitterEffect} with rates from 0.88 to 1.12.
+     */
+    public SpeedJitterEffect() {
+        this(0.12, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link SpeedJitterEffect} with specified deviation of the rates and source of randomness.
+     * @param maxDeviation maximum deviation of the rate from 1, less than 1.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public SpeedJitterEffect(double maxDeviation, RandomSource random) {
+        super(random);
+        if (maxDeviation < 0 || maxDeviation >= 1) {
+            throw new IllegalArgumentException("Deviation must be from 0 to 1.");
+        }
+        this.maxDeviation = maxDeviation;
+    }
+
+    @Override
+    public double getRate(int index) {
+        return nextDouble(1 - maxDeviation, 1 + maxDeviation);
+    }
+}
@@ -0,0 +1,386 @@
+package ml.miron.captcha.audio.encoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ShortBuffer;
+
+import ml.miron.captcha.audio.Sample;
+
+/**
+ * WAV encoder for the captcha audio.
+ * <p>
+ * Writes the PCM data of a {@link Sample} in {@link Sample#SC_AUDIO_FORMAT} as 16-bit PCM,
+ * 8-bit &mu;-law or 4-bit IMA ADPCM (see {@link Encoding}), optionally at an integral fraction
+ * of the sample rate. The header is prepared once per encoder, only its length fields vary.
+ * Unlike {@link javax.sound.sampled.AudioSystem} it knows the length of the file in advance,
+ * and downsamples, encodes and writes the samples in small chunks, so the file never exists in
+ * memory as a whole. The instances are immutable and can be shared.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class WavEncoder {
+
+    private static final int SOURCE_RATE = (int) Sample.SC_AUDIO_FORMAT.getSampleRate();
+    private static final int CHUNK_SIZE = 8192;
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    // IMA ADPCM: blocks of 256 bytes, a 4-byte header with the first sample and 504 samples of 4 bits
+    private static final int ADPCM_BLOCK_SIZE = 256;
+    private static final int ADPCM_BLOCK_SAMPLES = (ADPCM_BLOCK_SIZE - 4) * 2 + 1;
+    private static final int[] ADPCM_INDEX = {-1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int[] ADPCM_STEP = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707,
+            1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845,
+            8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794,
+            32767};
+
+    // G.711 mu-law
+    private static final int MULAW_BIAS = 0x84;
+    private static final int MULAW_CLIP = 32635;
+
+    private final Encoding encoding;
+    private final int sampleRate;
+    private final int factor;
+    private final byte[] header;
+
+    /**
+     * Encoding of the samples.
+     */
+    public enum Encoding {
+
+        /**
+         * 16-bit linear PCM, the format of the samples.
+         */
+        PCM(1, 16, 2),
+
+        /**
+         * 8-bit G.711 &mu;-law, half the size of PCM.
+         */
+        MULAW(7, 8, 1),
+
+        /**
+         * 4-bit IMA ADPCM, a quarter of the size of PCM.
+         */
+        IMA_ADPCM(0x11, 4, ADPCM_BLOCK_SIZE);
+
+        private final int formatTag;
+        private final int bitsPerSample;
+        private final int blockAlign;
+
+        Encoding(int formatTag, int bitsPerSample, int blockAlign) {
+            this.formatTag = formatTag;
+            this.bitsPerSample = bitsPerSample;
+            this.blockAlign = blockAlign;
+        }
+
+        /**
+         * Returns the WAVE format tag.
+         * @return see description.
+         */
+        public int getFormatTag() {
+            return formatTag;
+        }
+    }
+
+    /**
+     * Creates a {@link WavEncoder} which writes 16-bit PCM at the sample rate of the samples.
+     */
+    public WavEncoder() {
+        this(Encoding.PCM, SOURCE_RATE);
+    }
+
+    /**
+     * Creates a {@link WavEncoder} with specified encoding and sample rate.
+     * @param encoding encoding of the samples.
+     * @param sampleRate sample rate of the output, the sample rate of the samples divided by an integer.
+     */
+    public WavEncoder(Encoding encoding, int sampleRate) {
+        if (sampleRate < 1 || sampleRate > SOURCE_RATE || SOURCE_RATE % sampleRate != 0) {
+            throw new IllegalArgumentException("Sample rate must divide " + SOURCE_RATE + ", got " + sampleRate);
+        }
+        this.encoding = encoding;
+        this.sampleRate = sampleRate;
+        this.factor = SOURCE_RATE / sampleRate;
+        this.header = createHeader(encoding, sampleRate);
+    }
+
+    /**
+     * Returns the encoding of the samples.
+     * @return see description.
+     */
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns the sample rate of the output.
+     * @return see description.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Returns the length of the encoded sample in bytes.
+     * @param sample the instance of {@link Sample}.
+     * @return see description.
+     */
+    public int getLength(Sample sample) {
+        long dataLength = getDataLength(getOutputCount(sample.getSampleCount()));
+        // A chunk of odd length is followed by a pad byte
+        long length = header.length + dataLength + (dataLength & 1);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many samples: " + sample.getSampleCount());
+        }
+        return (int) length;
+    }
+
+    /**
+     * Writes the encoded sample to the stream. The stream is neither flushed nor closed.
+     * @param sample the instance of {@link Sample}.
+     * @param os output stream.
+     * @throws IOException if the stream could not be written.
+     */
+    public void write(Sample sample, OutputStream os) throws IOException {
+        ShortBuffer pcm = sample.getPcm();
+        int count = (int) getOutputCount(pcm.remaining());
+        int dataLength = (int) getDataLength(count);
+        byte[] chunk = CHUNK.get();
+
+        System.arraycopy(header, 0, chunk, 0, header.length);
+        putInt(chunk, 4, header.length - 8 + dataLength + (dataLength & 1));
+        putInt(chunk, header.length - 4, dataLength);
+        if (encoding != Encoding.PCM) {
+            putInt(chunk, header.length - 12, count);
+        }
+
+        int pos;
+        switch (encoding) {
+            case MULAW:
+                pos = writeMulaw(pcm, count, chunk, header.length, os);
+                break;
+            case IMA_ADPCM:
+                pos = writeAdpcm(pcm, count, chunk, header.length, os);
+                break;
+            default:
+                pos = writePcm(pcm, count, chunk, header.length, os);
+        }
+        if ((dataLength & 1) != 0) {
+            if (pos == CHUNK_SIZE) {
+                os.write(chunk, 0, pos);
+                pos = 0;
+            }
+            chunk[pos++] = 0;
+        }
+        if (pos > 0) {
+            os.write(chunk, 0, pos);
+        }
+    }
+
+    /**
+     * Encodes the sample to WAV.
+     * @param sample the instance of {@link Sample}.
+     * @return encoded sample.
+     */
+    public byte[] encode(Sample sample) {
+        final byte[] wav = new byte[getLength(sample)];
+        try {
+            write(sample, new OutputStream() {
+                private int count;
+
+                @Override
+                public void write(int b) {
+                    wav[count++] = (byte) b;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    System.arraycopy(b, off, wav, count, len);
+                    count += len;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return wav;
+    }
+
+    private int writePcm(ShortBuffer pcm, int count, byte[] chunk, int pos, OutputStream os) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (pos + 2 > CHUNK_SIZE) {
+                os.write(chunk, 0, pos);
+                pos = 0;
+            }
+            int value = sampleAt(pcm, i);
+            chunk[pos++] = (byte) value;
+            chunk[pos++] = (byte) (value >> 8);
+        }
+        return pos;
+    }
+
+    private int writeMulaw(ShortBuffer pcm, int count, byte[] chunk, int pos, OutputStream os) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (pos == CHUNK_SIZE) {
+                os.write(chunk, 0, pos);
+                pos = 0;
+            }
+            chunk[pos++] = toMulaw(sampleAt(pcm, i));
+        }
+        return pos;
+    }
+
+    private int writeAdpcm(ShortBuffer pcm, int count, byte[] chunk, int pos, OutputStream os) throws IOException {
+        int index = 0;
+        // The last block is padded with silence
+        for (int block = 0; block < count; block += ADPCM_BLOCK_SAMPLES) {
+            if (pos + ADPCM_BLOCK_SIZE > CHUNK_SIZE) {
+                os.write(chunk, 0, pos);
+                pos = 0;
+            }
+            int predictor = sampleAt(pcm, block);
+            chunk[pos++] = (byte) predictor;
+            chunk[pos++] = (byte) (predictor >> 8);
+            chunk[pos++] = (byte) index;
+            chunk[pos++] = 0;
+
+            for (int i = block + 1; i < block + ADPCM_BLOCK_SAMPLES; i += 2) {
+                int nibbles = 0;
+                for (int shift = 0; shift <= 4; shift += 4) {
+                    int diff = (i + (shift >> 2) < count ? sampleAt(pcm, i + (shift >> 2)) : 0) - predictor;
+                    int nibble = 0;
+                    if (diff < 0) {
+                        nibble = 8;
+                        diff = -diff;
+                    }
+                    int step = ADPCM_STEP[index];
+                    // The difference as the decoder will reconstruct it
+                    int delta = step >> 3;
+                    if (diff >= step) {
+                        nibble |= 4;
+                        diff -= step;
+                        delta += step;
+                    }
+                    step >>= 1;
+                    if (diff >= step) {
+                        nibble |= 2;
+                        diff -= step;
+                        delta += step;
+                    }
+                    step >>= 1;
+                    if (diff >= step) {
+                        nibble |= 1;
+                        delta += step;
+                    }
+                    predictor += (nibble & 8) != 0 ? -delta : delta;
+                    predictor = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+                    index = Math.max(0, Math.min(ADPCM_STEP.length - 1, index + ADPCM_INDEX[nibble & 7]));
+                    nibbles |= nibble << shift;
+                }
+                chunk[pos++] = (byte) nibbles;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the output sample <code>i</code>. When downsampling, the input samples are averaged by
+     * a triangular window twice the factor wide, which suppresses most of the aliasing.
+     */
+    private int sampleAt(ShortBuffer pcm, int i) {
+        if (factor == 1) {
+            return pcm.get(i);
+        }
+        int center = i * factor;
+        int sum = 0;
+        for (int k = 1 - factor; k < factor; k++) {
+            int j = center + k;
+            if (j >= 0 && j < pcm.limit()) {
+                sum += (factor - Math.abs(k)) * pcm.get(j);
+            }
+        }
+        return sum / (factor * factor);
+    }
+
+    private static byte toMulaw(int value) {
+        int sign = 0;
+        if (value < 0) {
+            sign = 0x80;
+            value = -value;
+        }
+        value = Math.min(value, MULAW_CLIP) + MULAW_BIAS;
+        int exponent = 24 - Integer.numberOfLeadingZeros(value);
+        int mantissa = (value >> (exponent + 3)) & 0x0f;
+        return (byte) ~(sign | exponent << 4 | mantissa);
+    }
+
+    private long getOutputCount(long inputCount) {
+        return (inputCount + factor - 1) / factor;
+    }
+
+    private long getDataLength(long count) {
+        if (encoding == Encoding.IMA_ADPCM) {
+            return (count + ADPCM_BLOCK_SAMPLES - 1) / ADPCM_BLOCK_SAMPLES * ADPCM_BLOCK_SIZE;
+        }
+        return count * encoding.bitsPerSample / 8;
+    }
+
+    private static byte[] createHeader(Encoding encoding, int sampleRate) {
+        int channels = Sample.SC_AUDIO_FORMAT.getChannels();
+        // Formats other than PCM have an extended format chunk and a fact chunk with the number of samples
+        boolean pcm = encoding == Encoding.PCM;
+        int formatSize = pcm ? 16 : encoding == Encoding.IMA_ADPCM ? 20 : 18;
+        int byteRate = encoding == Encoding.IMA_ADPCM
+                ? sampleRate * ADPCM_BLOCK_SIZE / ADPCM_BLOCK_SAMPLES
+                : sampleRate * encoding.blockAlign;
+
+        byte[] header = new byte[12 + 8 + formatSize + (pcm ? 0 : 12) + 8];
+        putAscii(header, 0, "RIFF");
+        putAscii(header, 8, "WAVE");
+        putAscii(header, 12, "fmt ");
+        putInt(header, 16, formatSize);
+        putShort(header, 20, encoding.formatTag);
+        putShort(header, 22, channels);
+        putInt(header, 24, sampleRate);
+        putInt(header, 28, byteRate);
+        putShort(header, 32, encoding.blockAlign);
+        putShort(header, 34, encoding.bitsPerSample);
+        int pos = 36;
+        if (!pcm) {
+            putShort(header, pos, formatSize - 18);
+            pos += 2;
+            if (encoding == Encoding.IMA_ADPCM) {
+                putShort(header, pos, ADPCM_BLOCK_SAMPLES);
+                pos += 2;
+            }
+            putAscii(header, pos, "fact");
+            putInt(header, pos + 4, 4);
+            pos += 12;
+        }
+        putAscii(header, pos, "data");
+        return header;
+    }
+
+    private static void putAscii(byte[] b, int offset, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            b[offset + i] = (byte) s.charAt(i);
+        }
+    }
+
+    private static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        putShort(b, offset, value);
+        putShort(b, offset + 2, value >> 16);
+    }
+}
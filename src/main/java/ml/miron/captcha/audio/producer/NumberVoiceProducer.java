@@ -1,15 +1,18 @@
 package ml.miron.captcha.audio.producer;
 
-import java.security.SecureRandom;
+import java.nio.ShortBuffer;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import ml.miron.captcha.util.FileUtil;
+import ml.miron.captcha.util.RandomSource;
 import ml.miron.captcha.audio.Sample;
 
 /**
  * Generates a vocalization for a given number, randomly selecting from a list of voices.
+ * Every voice file is decoded once, on first use or by {@link #preload()}, and kept in memory.
+ * Alternatively the voices are taken from a {@link VoiceBank}.
  * The default voices are located in the jar in the <code>sounds/en/numbers</code> directory,
  * and have filenames with a format of <i>num</i>-<i>voice</i>.wav, e.g.:
  * <code>sounds/en/numbers/1-alex.wav</code>.
@@ -19,7 +22,6 @@ import ml.miron.captcha.audio.Sample;
  */
 public class NumberVoiceProducer implements VoiceProducer {
 
-    private static final Random RAND = new SecureRandom();
     private static final String[] DEFAULT_VOICES = {"alex", "bruce", "fred", "ralph", "kathy", "vicki", "victoria"};
     private static final Map<Integer, String[]> DEFAULT_VOICES_MAP;
 
@@ -42,7 +44,13 @@ public class NumberVoiceProducer implements VoiceProducer {
         }
     }
 
+    private static final int DIGITS = 10;
+
     private final Map<Integer, String[]> voices;
+    private final RandomSource random;
+    // PCM data of the voices, filled on first use; the voices of digit d start at offsets[d]
+    private final AtomicReferenceArray<ShortBuffer> clips;
+    private final int[] offsets = new int[DIGITS + 1];
 
     /**
      * Creates a {@link NumberVoiceProducer} for the default set of voices.
@@ -51,6 +59,14 @@ public class NumberVoiceProducer implements VoiceProducer {
         this(DEFAULT_VOICES_MAP);
     }
 
+    /**
+     * Creates a {@link NumberVoiceProducer} for the default set of voices with specified source of randomness.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public NumberVoiceProducer(RandomSource random) {
+        this(DEFAULT_VOICES_MAP, random);
+    }
+
     /**
      * Creates a {@link NumberVoiceProducer} for the given <code>voices</code>.
      * Conceptually the map must look like the following:
@@ -62,7 +78,66 @@ public class NumberVoiceProducer implements VoiceProducer {
      * @param voices a map of numbers to their corresponding filenames.
      */
     public NumberVoiceProducer(Map<Integer, String[]> voices) {
+        this(voices, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link NumberVoiceProducer} for the given <code>voices</code> with specified source of randomness.
+     * @param voices a map of numbers to their corresponding filenames.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public NumberVoiceProducer(Map<Integer, String[]> voices, RandomSource random) {
         this.voices = voices;
+        this.random = random;
+        for (int i = 0; i < DIGITS; i++) {
+            String[] files = voices.get(i);
+            offsets[i + 1] = offsets[i] + (files != null ? files.length : 0);
+        }
+        clips = new AtomicReferenceArray<ShortBuffer>(offsets[DIGITS]);
+    }
+
+    /**
+     * Creates a {@link NumberVoiceProducer} for the voices of the digits in the bank.
+     * @param bank the instance of {@link VoiceBank}.
+     */
+    public NumberVoiceProducer(VoiceBank bank) {
+        this(bank, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link NumberVoiceProducer} for the voices of the digits in the bank
+     * with specified source of randomness.
+     * @param bank the instance of {@link VoiceBank}.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public NumberVoiceProducer(VoiceBank bank, RandomSource random) {
+        this.voices = Collections.emptyMap();
+        this.random = random;
+        for (int i = 0; i < DIGITS; i++) {
+            int count = bank.getVoices(Character.forDigit(i, DIGITS)).size();
+            if (count == 0) {
+                throw new IllegalArgumentException("No voices for " + i + " in the bank.");
+            }
+            offsets[i + 1] = offsets[i] + count;
+        }
+        clips = new AtomicReferenceArray<ShortBuffer>(offsets[DIGITS]);
+        for (int i = 0; i < DIGITS; i++) {
+            for (int j = 0; j < offsets[i + 1] - offsets[i]; j++) {
+                clips.set(offsets[i] + j, bank.getPcm(Character.forDigit(i, DIGITS), j));
+            }
+        }
+    }
+
+    /**
+     * Decodes every voice file, so that the first requests do not have to.
+     * Otherwise the files are decoded on first use. Either way every file is read once.
+     */
+    public void preload() {
+        for (int i = 0; i < DIGITS; i++) {
+            for (int j = 0; j < offsets[i + 1] - offsets[i]; j++) {
+                getClip(i, j);
+            }
+        }
     }
 
     @Override
@@ -71,10 +146,16 @@ public class NumberVoiceProducer implements VoiceProducer {
             throw new IllegalArgumentException("Expected <num> to be a number, got '" + num + "' instead.");
         }
 
-        int idx = Integer.parseInt(num + "");
-        String[] files = voices.get(idx);
-        String filename = files[RAND.nextInt(files.length)];
+        int idx = Character.digit(num, DIGITS);
+        return PcmCache.toSample(getClip(idx, random.fast().nextInt(offsets[idx + 1] - offsets[idx])));
+    }
 
-        return FileUtil.readSample(filename);
+    private ShortBuffer getClip(int digit, int voice) {
+        ShortBuffer pcm = clips.get(offsets[digit] + voice);
+        if (pcm == null) {
+            pcm = PcmCache.get(voices.get(digit)[voice]);
+            clips.set(offsets[digit] + voice, pcm);
+        }
+        return pcm;
     }
 }
@@ -0,0 +1,61 @@
+package ml.miron.captcha.audio.producer;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ml.miron.captcha.audio.Sample;
+import ml.miron.captcha.util.FileUtil;
+
+/**
+ * Decoded PCM data of audio resources, in {@link Sample#SC_AUDIO_FORMAT}.
+ * Every resource is read, parsed and checked once; the cached buffers are read-only.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+final class PcmCache {
+
+    private static final ConcurrentMap<String, ShortBuffer> CLIPS = new ConcurrentHashMap<String, ShortBuffer>();
+
+    private PcmCache() {
+    }
+
+    /**
+     * Returns the PCM data of the resource, decoding it on first use.
+     * @param filename name of file.
+     * @return see description.
+     */
+    static ShortBuffer get(String filename) {
+        ShortBuffer pcm = CLIPS.get(filename);
+        if (pcm == null) {
+            pcm = FileUtil.readSample(filename).getPcm();
+            ShortBuffer existing = CLIPS.putIfAbsent(filename, pcm);
+            if (existing != null) {
+                pcm = existing;
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Wraps PCM data into a new {@link Sample}.
+     * @param pcm PCM data.
+     * @return see description.
+     */
+    static Sample toSample(ShortBuffer pcm) {
+        return toSample(pcm, 0, pcm.capacity());
+    }
+
+    /**
+     * Wraps a window of PCM data into a new {@link Sample}, without copying.
+     * @param pcm PCM data.
+     * @param offset offset of the window in samples.
+     * @param length length of the window in samples.
+     * @return see description.
+     */
+    static Sample toSample(ShortBuffer pcm, int offset, int length) {
+        ShortBuffer window = pcm.duplicate();
+        window.limit(offset + length).position(offset);
+        return new Sample(window);
+    }
+}
@@ -1,11 +1,11 @@
 package ml.miron.captcha.audio.producer;
 
-import java.security.SecureRandom;
+import java.nio.ShortBuffer;
 import java.util.List;
 import java.util.Random;
 
-import ml.miron.captcha.util.FileUtil;
 import ml.miron.captcha.util.MixerUtil;
+import ml.miron.captcha.util.RandomSource;
 import ml.miron.captcha.audio.Sample;
 
 /**
@@ -19,19 +19,23 @@ import ml.miron.captcha.audio.Sample;
  * String myFiles = { &quot;/mysounds/noise1.wav&quot;, &quot;/mysounds/noise2.wav&quot; };
  * NoiseProducer myNp = new RandomNoiseProducer(myFiles);
  * </pre>
+ * <p>
+ * Every noise file is decoded once and shared. Each captcha is mixed with a window of the
+ * chosen noise which starts at a random offset and is as long as the voices.
+ * </p>
  *
  * @author <a href="mailto:james.childers@gmail.com">James Childers</a>
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
  */
 public class RandomNoiseProducer implements NoiseProducer {
 
-    private static final Random RAND = new SecureRandom();
     private static final String[] DEFAULT_NOISES = {
             "/META-INF/resources/smartcaptcha/sounds/noises/radio_tuning.wav",
             "/META-INF/resources/smartcaptcha/sounds/noises/restaurant.wav",
             "/META-INF/resources/smartcaptcha/sounds/noises/swimming.wav",};
 
     private final String[] noiseFiles;
+    private final RandomSource random;
 
     /**
      * Creates a {@link RandomNoiseProducer} from default set of noises.
@@ -40,21 +44,57 @@ public class RandomNoiseProducer implements NoiseProducer {
         this(DEFAULT_NOISES);
     }
 
+    /**
+     * Creates a {@link RandomNoiseProducer} from default set of noises with specified source of randomness.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public RandomNoiseProducer(RandomSource random) {
+        this(DEFAULT_NOISES, random);
+    }
+
     /**
      * Creates a {@link RandomNoiseProducer} from one of the given <code>noiseFiles</code>.
      * @param noiseFiles array of paths to files.
      */
     public RandomNoiseProducer(String[] noiseFiles) {
+        this(noiseFiles, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link RandomNoiseProducer} from one of the given <code>noiseFiles</code>
+     * with specified source of randomness.
+     * @param noiseFiles array of paths to files.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public RandomNoiseProducer(String[] noiseFiles, RandomSource random) {
         this.noiseFiles = noiseFiles.clone();
+        this.random = random;
+    }
+
+    /**
+     * Decodes every noise file, so that the first requests do not have to.
+     * Otherwise the files are decoded on first use. Either way every file is read once.
+     */
+    public void preload() {
+        for (String noiseFile : noiseFiles) {
+            PcmCache.get(noiseFile);
+        }
     }
 
     @Override
     public Sample addNoise(List<Sample> samples) {
-        Sample appended = MixerUtil.append(samples);
-        String noiseFile = noiseFiles[RAND.nextInt(noiseFiles.length)];
-        Sample noise = FileUtil.readSample(noiseFile);
+        long voiceLength = 0;
+        for (Sample sample : samples) {
+            voiceLength += sample.getSampleCount();
+        }
+        Random rand = random.fast();
+        ShortBuffer pcm = PcmCache.get(noiseFiles[rand.nextInt(noiseFiles.length)]);
+
+        // Take the window of the noise which overlaps the voices
+        int length = (int) Math.min(voiceLength, pcm.capacity());
+        Sample noise = PcmCache.toSample(pcm, rand.nextInt(pcm.capacity() - length + 1), length);
 
         // Decrease the volume of the noise to make sure the voices can be heard
-        return MixerUtil.mix(appended, 1.0, noise, 0.6);
+        return MixerUtil.mix(samples, 1.0, noise, 0.6);
     }
 }
@@ -0,0 +1,162 @@
+package ml.miron.captcha.audio.producer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ml.miron.captcha.audio.Sample;
+
+/**
+ * Packed bank of voice clips, built by {@link VoiceBankBuilder}.
+ * <p>
+ * A bank holds the PCM data of every clip in {@link Sample#SC_AUDIO_FORMAT}, indexed by symbol and voice.
+ * A bank file is mapped into memory read-only, so its clips are slices of the mapping which are neither
+ * read nor copied until they are played, and are shared by all threads.
+ * </p>
+ * <p>
+ * The file starts with a header of little-endian integers: the magic <code>SCVB</code>, the version,
+ * the sample rate, the number of clips and the offset of the PCM data. The index follows, one entry per
+ * clip: the symbol (2 bytes), the length of the voice name (2 bytes), the name in UTF-8, the offset of
+ * the clip from the start of the PCM data and its length, both in samples. The PCM data is little-endian.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class VoiceBank {
+
+    static final int MAGIC = 'S' | 'C' << 8 | 'V' << 16 | 'B' << 24;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<Character, List<ShortBuffer>> clips;
+    private final Map<Character, List<String>> voices;
+
+    private VoiceBank(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a voice bank.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported voice bank version " + buffer.getInt(4));
+        }
+        if (buffer.getInt(8) != (int) Sample.SC_AUDIO_FORMAT.getSampleRate()) {
+            throw new IllegalArgumentException("Unsupported sample rate of voice bank " + buffer.getInt(8));
+        }
+        int count = buffer.getInt(12);
+        int dataOffset = buffer.getInt(16);
+
+        buffer.position(dataOffset);
+        ShortBuffer pcm = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        buffer.position(HEADER_SIZE);
+
+        Map<Character, List<ShortBuffer>> clipMap = new TreeMap<Character, List<ShortBuffer>>();
+        Map<Character, List<String>> voiceMap = new TreeMap<Character, List<String>>();
+        for (int i = 0; i < count; i++) {
+            char symbol = buffer.getChar();
+            byte[] name = new byte[buffer.getShort() & 0xffff];
+            buffer.get(name);
+            int offset = buffer.getInt();
+            int length = buffer.getInt();
+
+            ShortBuffer clip = pcm.duplicate();
+            clip.limit(offset + length).position(offset);
+            if (!clipMap.containsKey(symbol)) {
+                clipMap.put(symbol, new ArrayList<ShortBuffer>());
+                voiceMap.put(symbol, new ArrayList<String>());
+            }
+            clipMap.get(symbol).add(clip.slice().asReadOnlyBuffer());
+            voiceMap.get(symbol).add(new String(name, UTF_8));
+        }
+        for (Map.Entry<Character, List<ShortBuffer>> entry : clipMap.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            voiceMap.put(entry.getKey(), Collections.unmodifiableList(voiceMap.get(entry.getKey())));
+        }
+        this.clips = Collections.unmodifiableMap(clipMap);
+        this.voices = Collections.unmodifiableMap(voiceMap);
+    }
+
+    /**
+     * Maps the bank file into memory.
+     * @param file bank file.
+     * @return see description.
+     * @throws IOException if the file could not be mapped.
+     */
+    public static VoiceBank open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed
+            FileChannel channel = raf.getChannel();
+            return new VoiceBank(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the bank from a stream into the heap, e.g. from a resource which is not a file.
+     * @param is input stream, which is not closed.
+     * @return see description.
+     * @throws IOException if the stream could not be read.
+     */
+    public static VoiceBank read(InputStream is) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] data = new byte[16384];
+        int nRead;
+        while ((nRead = is.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, nRead);
+        }
+        return new VoiceBank(ByteBuffer.wrap(buffer.toByteArray()));
+    }
+
+    /**
+     * Returns the symbols of the bank in ascending order.
+     * @return see description.
+     */
+    public List<Character> getSymbols() {
+        return new ArrayList<Character>(clips.keySet());
+    }
+
+    /**
+     * Returns the names of the voices of the symbol, or an empty list if the bank has no such symbol.
+     * @param symbol symbol.
+     * @return see description.
+     */
+    public List<String> getVoices(char symbol) {
+        List<String> names = voices.get(symbol);
+        return names != null ? names : Collections.<String>emptyList();
+    }
+
+    /**
+     * Returns the clip of the symbol spoken by the voice with the given index.
+     * @param symbol symbol.
+     * @param voice index of the voice.
+     * @return see description.
+     */
+    public Sample getSample(char symbol, int voice) {
+        return new Sample(getPcm(symbol, voice));
+    }
+
+    /**
+     * Returns the read-only PCM data of the clip of the symbol spoken by the voice with the given index.
+     */
+    ShortBuffer getPcm(char symbol, int voice) {
+        List<ShortBuffer> list = clips.get(symbol);
+        if (list == null) {
+            throw new IllegalArgumentException("No voices for '" + symbol + "' in the bank.");
+        }
+        return list.get(voice).duplicate();
+    }
+}
@@ -0,0 +1,213 @@
+package ml.miron.captcha.audio.producer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import ml.miron.captcha.audio.Sample;
+
+/**
+ * Builds a {@link VoiceBank} file from audio clips.
+ * <p>
+ * The clips may have any sample rate, sample size, byte order and number of channels the audio system
+ * can read; they are converted once to {@link Sample#SC_AUDIO_FORMAT} while the bank is built: the
+ * channels are mixed down and the sample rate is converted by linear interpolation.
+ * </p>
+ * <p>
+ * It can also be run from the command line with the bank file and the WAV files or directories of
+ * WAV files, named <i>symbol</i>.wav or <i>symbol</i>-<i>voice</i>.wav like the default voices, e.g.:
+ * </p>
+ * <pre>
+ * java -cp smartcaptcha.jar ml.miron.captcha.audio.producer.VoiceBankBuilder voices.bank sounds/en/numbers
+ * </pre>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class VoiceBankBuilder {
+
+    private static final AudioFormat.Encoding PCM_SIGNED = AudioFormat.Encoding.PCM_SIGNED;
+
+    private final List<Clip> clips = new ArrayList<Clip>();
+    private int length;
+
+    /**
+     * Adds a clip.
+     * @param symbol symbol spoken in the clip.
+     * @param voice name of the voice.
+     * @param ais audio of the clip, which is read to the end.
+     * @return the current instance of {@link VoiceBankBuilder}.
+     * @throws IOException if the audio could not be read or converted.
+     */
+    public VoiceBankBuilder add(char symbol, String voice, AudioInputStream ais) throws IOException {
+        short[] pcm = convert(ais);
+        clips.add(new Clip(symbol, voice, pcm, length));
+        length += pcm.length;
+        return this;
+    }
+
+    /**
+     * Adds an audio file. The symbol and the voice are taken from the name of the file.
+     * @param file audio file named <i>symbol</i>.wav or <i>symbol</i>-<i>voice</i>.wav.
+     * @return the current instance of {@link VoiceBankBuilder}.
+     * @throws IOException if the file could not be read or converted.
+     */
+    public VoiceBankBuilder add(File file) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        int dash = base.indexOf('-');
+        if (dash != 1 && base.length() != 1) {
+            throw new IllegalArgumentException("Expected <symbol>.wav or <symbol>-<voice>.wav, got " + name);
+        }
+        AudioInputStream ais;
+        try {
+            ais = AudioSystem.getAudioInputStream(file);
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Unsupported audio file " + file, e);
+        }
+        try {
+            return add(base.charAt(0), dash == 1 ? base.substring(2) : "", ais);
+        } finally {
+            ais.close();
+        }
+    }
+
+    /**
+     * Writes the bank.
+     * @param os output stream, which is neither flushed nor closed.
+     * @throws IOException if the stream could not be written.
+     */
+    public void write(OutputStream os) throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        for (Clip clip : clips) {
+            byte[] name = clip.voice.getBytes(VoiceBank.UTF_8);
+            ByteBuffer entry = ByteBuffer.allocate(12 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+            entry.putChar(clip.symbol).putShort((short) name.length).put(name).putInt(clip.offset).putInt(clip.pcm.length);
+            index.write(entry.array());
+        }
+        // Keep the PCM data aligned for the views of the mapping
+        int dataOffset = (VoiceBank.HEADER_SIZE + index.size() + 7) & ~7;
+
+        ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(VoiceBank.MAGIC).putInt(VoiceBank.VERSION).putInt((int) Sample.SC_AUDIO_FORMAT.getSampleRate())
+                .putInt(clips.size()).putInt(dataOffset).put(index.toByteArray());
+        os.write(header.array());
+
+        for (Clip clip : clips) {
+            ByteBuffer data = ByteBuffer.allocate(clip.pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+            data.asShortBuffer().put(clip.pcm);
+            os.write(data.array());
+        }
+    }
+
+    /**
+     * Writes the bank to a file.
+     * @param file bank file.
+     * @throws IOException if the file could not be written.
+     */
+    public void write(File file) throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(os);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Builds a bank file from the command line.
+     * @param args the bank file followed by audio files or directories.
+     * @throws IOException if a file could not be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: VoiceBankBuilder <bank file> <wav file or directory>...");
+            System.exit(1);
+        }
+        VoiceBankBuilder builder = new VoiceBankBuilder();
+        for (int i = 1; i < args.length; i++) {
+            File file = new File(args[i]);
+            File[] files = file.isDirectory() ? file.listFiles() : new File[]{file};
+            Arrays.sort(files);
+            for (File f : files) {
+                if (f.isFile() && f.getName().toLowerCase().endsWith(".wav")) {
+                    builder.add(f);
+                }
+            }
+        }
+        builder.write(new File(args[0]));
+        System.out.println("Wrote " + builder.clips.size() + " clips, " + builder.length + " samples to " + args[0]);
+    }
+
+    /**
+     * Converts the audio to 16-bit PCM, mixes the channels down and resamples it to the rate of the captchas.
+     */
+    private static short[] convert(AudioInputStream ais) throws IOException {
+        AudioFormat source = ais.getFormat();
+        int channels = source.getChannels();
+        AudioFormat pcmFormat = new AudioFormat(PCM_SIGNED, source.getSampleRate(), 16, channels,
+                channels * 2, source.getSampleRate(), false);
+        if (!source.matches(pcmFormat)) {
+            if (!AudioSystem.isConversionSupported(pcmFormat, source)) {
+                throw new IOException("Could not convert " + source + " to " + pcmFormat);
+            }
+            ais = AudioSystem.getAudioInputStream(pcmFormat, ais);
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] data = new byte[16384];
+        int nRead;
+        while ((nRead = ais.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, nRead);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+        float[] mono = new float[bytes.remaining() / (2 * channels)];
+        for (int i = 0; i < mono.length; i++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += bytes.getShort();
+            }
+            mono[i] = (float) sum / channels;
+        }
+
+        double ratio = source.getSampleRate() / Sample.SC_AUDIO_FORMAT.getSampleRate();
+        short[] pcm = new short[mono.length == 0 ? 0 : (int) ((mono.length - 1) / ratio) + 1];
+        for (int i = 0; i < pcm.length; i++) {
+            double position = i * ratio;
+            int j = (int) position;
+            double frac = position - j;
+            double value = j + 1 < mono.length ? mono[j] * (1 - frac) + mono[j + 1] * frac : mono[j];
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+        }
+        return pcm;
+    }
+
+    private static final class Clip {
+
+        private final char symbol;
+        private final String voice;
+        private final short[] pcm;
+        private final int offset;
+
+        Clip(char symbol, String voice, short[] pcm, int offset) {
+            this.symbol = symbol;
+            this.voice = voice;
+            this.pcm = pcm;
+            this.offset = offset;
+        }
+    }
+}
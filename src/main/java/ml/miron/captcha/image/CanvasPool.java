@@ -0,0 +1,80 @@
+package ml.miron.captcha.image;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Thread-safe pool of reusable <code>TYPE_INT_ARGB</code> canvases, kept separately per image size.
+ * <p>
+ * A canvas is borrowed by {@link Captcha.Builder} and given back by {@link Captcha#release()}.
+ * If the pool of the size is empty a new canvas is created, and canvases released to a full pool
+ * are left to the garbage collector, so the pool never blocks.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class CanvasPool {
+
+    private final ConcurrentMap<Long, BlockingQueue<BufferedImage>> canvases =
+            new ConcurrentHashMap<Long, BlockingQueue<BufferedImage>>();
+    private final int maxIdle;
+
+    /**
+     * Creates a {@link CanvasPool} which keeps up to <code>maxIdle</code> free canvases per size.
+     * @param maxIdle maximum number of free canvases per size.
+     */
+    public CanvasPool(int maxIdle) {
+        if (maxIdle < 1) {
+            throw new IllegalArgumentException("Pool size must be positive.");
+        }
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Borrows a canvas of the given size. Its content is undefined.
+     * @param width width in pixels.
+     * @param height height in pixels.
+     * @return see description.
+     */
+    public BufferedImage acquire(int width, int height) {
+        BufferedImage canvas = getQueue(width, height).poll();
+        if (canvas == null) {
+            canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        return canvas;
+    }
+
+    /**
+     * Gives the canvas back to the pool. The canvas must not be used after this call.
+     * @param canvas canvas borrowed by {@link #acquire(int, int)}.
+     */
+    public void release(BufferedImage canvas) {
+        getQueue(canvas.getWidth(), canvas.getHeight()).offer(canvas);
+    }
+
+    /**
+     * Returns the number of free canvases of the given size.
+     * @param width width in pixels.
+     * @param height height in pixels.
+     * @return see description.
+     */
+    public int getIdleCount(int width, int height) {
+        return getQueue(width, height).size();
+    }
+
+    private BlockingQueue<BufferedImage> getQueue(int width, int height) {
+        Long key = ((long) width << 32) | height;
+        BlockingQueue<BufferedImage> queue = canvases.get(key);
+        if (queue == null) {
+            queue = new LinkedBlockingQueue<BufferedImage>(maxIdle);
+            BlockingQueue<BufferedImage> existing = canvases.putIfAbsent(key, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+}
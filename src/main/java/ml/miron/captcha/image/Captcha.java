@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 
+import ml.miron.captcha.image.background.AbstractBackground;
 import ml.miron.captcha.image.background.Background;
 import ml.miron.captcha.image.producer.DefaultTextProducer;
 import ml.miron.captcha.image.producer.NoiseProducer;
@@ -15,6 +16,7 @@ import ml.miron.captcha.image.renderer.WordRenderer;
 import ml.miron.captcha.image.background.TransparentBackground;
 import ml.miron.captcha.image.producer.CurvedLineNoiseProducer;
 import ml.miron.captcha.image.producer.TextProducer;
+import ml.miron.captcha.util.TileExecutor;
 
 /**
  * A builder for generating a captcha image/answer pair.
@@ -36,6 +38,11 @@ import ml.miron.captcha.image.producer.TextProducer;
  * 	.build();</pre>
  * <p>Adding multiple background has no affect; the last background added will simply be the
  * one that is eventually rendered.</p>
+ * <p>A builder created with a {@link CanvasPool} borrows its canvases from the pool: the stages are
+ * rendered into a cleared canvas and painted over the background in another one, exactly like
+ * in the images allocated otherwise, and the first canvas is given back by <code>build()</code>.
+ * Such a captcha must be given back by {@link #release()} once its image is no longer used,
+ * e.g. after it has been encoded.</p>
  *
  * @author <a href="mailto:james.childers@gmail.com">James Childers</a>
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
@@ -57,10 +64,18 @@ public final class Captcha {
      */
     public static class Builder {
 
+        private static final TransparentBackground TRANSPARENT = new TransparentBackground();
+
         private String answer = "";
+        private final int width;
+        private final int height;
         private BufferedImage image;
         private BufferedImage background;
         private boolean addBorder = false;
+        private final CanvasPool pool;
+        private Background poolBackground;
+        private TileExecutor tiles = TileExecutor.getDefault();
+        private AbstractBackground transparent = TRANSPARENT;
 
         /**
          * Creates a {@link Captcha.Builder} with specified width and height.
@@ -68,7 +83,47 @@ public final class Captcha {
          * @param height height of captcha.
          */
         public Builder(int width, int height) {
+            this.width = width;
+            this.height = height;
             image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            pool = null;
+        }
+
+        /**
+         * Creates a {@link Captcha.Builder} with specified width and height, which renders
+         * into a canvas borrowed from the given {@link CanvasPool}.
+         * @param width width of captcha.
+         * @param height height of captcha.
+         * @param pool the instance of {@link CanvasPool}.
+         */
+        public Builder(int width, int height, CanvasPool pool) {
+            this.width = width;
+            this.height = height;
+            this.pool = pool;
+        }
+
+        /**
+         * Use the given {@link TileExecutor} to paint large images over the background.
+         * @param tiles the instance of {@link TileExecutor}.
+         * @return the current instance of {@link Captcha.Builder}.
+         */
+        public Builder withTiles(TileExecutor tiles) {
+            return withTiles(tiles,
+                    tiles == TileExecutor.getDefault() ? TRANSPARENT : new TransparentBackground(tiles));
+        }
+
+        /**
+         * Use the given {@link TileExecutor} to paint large images over the background, and the given
+         * {@link TransparentBackground} to clear the canvas. Callers which build many captchas with the same
+         * executor should keep one background for it rather than have one created per builder.
+         * @param tiles the instance of {@link TileExecutor}.
+         * @param transparent the instance of {@link TransparentBackground}, which uses the same executor.
+         * @return the current instance of {@link Captcha.Builder}.
+         */
+        public Builder withTiles(TileExecutor tiles, TransparentBackground transparent) {
+            this.tiles = tiles;
+            this.transparent = transparent;
+            return this;
         }
 
         /**
@@ -85,7 +140,11 @@ public final class Captcha {
          * @return the current instance of {@link Captcha.Builder}.
          */
         public Builder addBackground(Background background) {
-            this.background = background.getBackground(image.getWidth(), image.getHeight());
+            if (pool != null) {
+                poolBackground = background;
+            } else {
+                this.background = background.getBackground(width, height);
+            }
             return this;
         }
 
@@ -125,7 +184,7 @@ public final class Captcha {
          */
         public Builder addText(TextProducer txtProd, WordRenderer wRenderer) {
             answer += txtProd.getText();
-            wRenderer.render(answer, image);
+            wRenderer.render(answer, canvas());
             return this;
         }
 
@@ -143,7 +202,7 @@ public final class Captcha {
          * @return the current instance of {@link Captcha.Builder}.
          */
         public Builder addNoise(NoiseProducer noise) {
-            noise.makeNoise(image);
+            noise.makeNoise(canvas());
             return this;
         }
 
@@ -161,7 +220,7 @@ public final class Captcha {
          * @return the current instance of {@link Captcha.Builder}.
          */
         public Builder gimp(Renderer renderer) {
-            renderer.gimp(image);
+            renderer.gimp(canvas());
             return this;
         }
 
@@ -180,30 +239,84 @@ public final class Captcha {
          * @return The constructed captcha.
          */
         public Captcha build() {
-            if (background == null) {
-                background = new TransparentBackground().getBackground(image.getWidth(), image.getHeight());
+            BufferedImage foreground = canvas();
+            if (pool != null) {
+                background = pool.acquire(width, height);
+                fillBackground(background);
+            } else if (background == null) {
+                background = transparent.getBackground(width, height);
             }
 
-            // Paint the main image over the background
-            Graphics2D g = background.createGraphics();
-            g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1.0f));
-            g.drawImage(image, null, null);
-
-            if (addBorder) {
-                int width = image.getWidth();
-                int height = image.getHeight();
-
-                g.setColor(Color.BLACK);
-                g.drawLine(0, 0, 0, width);
-                g.drawLine(0, 0, width, 0);
-                g.drawLine(0, height - 1, width, height - 1);
-                g.drawLine(width - 1, height - 1, width - 1, 0);
+            paint(foreground, background);
+            if (pool != null) {
+                pool.release(foreground);
             }
-
             image = background;
+            if (addBorder) {
+                drawBorder();
+            }
 
             return new Captcha(this);
         }
+
+        /**
+         * Returns the canvas of the stages, borrowing and clearing it first if the builder has a pool.
+         */
+        private BufferedImage canvas() {
+            if (image == null) {
+                image = pool.acquire(width, height);
+                transparent.fillBackground(image);
+            }
+            return image;
+        }
+
+        private void fillBackground(BufferedImage canvas) {
+            if (poolBackground == null) {
+                transparent.fillBackground(canvas);
+            } else if (poolBackground instanceof AbstractBackground) {
+                ((AbstractBackground) poolBackground).fillBackground(canvas);
+            } else {
+                Graphics2D g = canvas.createGraphics();
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(poolBackground.getBackground(width, height), 0, 0, null);
+                g.dispose();
+            }
+        }
+
+        /**
+         * Paints the main image over the background.
+         */
+        private void paint(final BufferedImage foreground, final BufferedImage target) {
+            tiles.forRows(width, height, new TileExecutor.RowTask() {
+                @Override
+                public void run(int fromRow, int toRow) {
+                    Graphics2D g = target.createGraphics();
+                    g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1.0f));
+                    g.clipRect(0, fromRow, width, toRow - fromRow);
+                    g.drawImage(foreground, null, null);
+                    g.dispose();
+                }
+            });
+        }
+
+        private void drawBorder() {
+            int black = Color.BLACK.getRGB();
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, 0, black);
+                image.setRGB(x, height - 1, black);
+            }
+            for (int y = 0; y < height; y++) {
+                image.setRGB(0, y, black);
+                image.setRGB(width - 1, y, black);
+            }
+        }
+
+        private void release() {
+            if (pool != null && image != null) {
+                pool.release(image);
+                image = null;
+            }
+        }
     }
 
     /**
@@ -230,4 +343,12 @@ public final class Captcha {
     public BufferedImage getImage() {
         return builder.image;
     }
+
+    /**
+     * Gives the canvas back to the {@link CanvasPool} the captcha was built with, if any.
+     * The image must not be used afterwards; for captchas built without a pool nothing happens.
+     */
+    public void release() {
+        builder.release();
+    }
 }
\ No newline at end of file
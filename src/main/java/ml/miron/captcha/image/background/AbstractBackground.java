@@ -1,5 +1,7 @@
 package ml.miron.captcha.image.background;
 
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 
 /**
@@ -13,4 +15,16 @@ public abstract class AbstractBackground implements Background {
     public BufferedImage addBackground(BufferedImage image) {
         return getBackground(image.getWidth(), image.getHeight());
     }
+
+    /**
+     * Replaces the content of the given image by the background.
+     * Implementations should override it to avoid the intermediate image.
+     * @param image the image to fill.
+     */
+    public void fillBackground(BufferedImage image) {
+        Graphics2D g = image.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(getBackground(image.getWidth(), image.getHeight()), 0, 0, null);
+        g.dispose();
+    }
 }
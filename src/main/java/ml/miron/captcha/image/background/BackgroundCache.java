@@ -0,0 +1,78 @@
+package ml.miron.captcha.image.background;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small thread-safe LRU cache of rendered backgrounds as packed ARGB pixels.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+final class BackgroundCache {
+
+    private final Map<Key, int[]> backgrounds;
+
+    /**
+     * Creates a {@link BackgroundCache} with specified maximum number of backgrounds.
+     * @param maxSize maximum number of backgrounds.
+     */
+    BackgroundCache(final int maxSize) {
+        backgrounds = new LinkedHashMap<Key, int[]>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the pixels of the background with specified size and parameters.
+     * The returned array must not be modified.
+     * @param width width in pixels.
+     * @param height height in pixels.
+     * @param params parameters of the background, like colors.
+     * @return the pixels or <code>null</code> if there is no such background.
+     */
+    synchronized int[] get(int width, int height, int... params) {
+        return backgrounds.get(new Key(width, height, params));
+    }
+
+    /**
+     * Stores the pixels of the background with specified size and parameters.
+     * @param pixels pixels of the background.
+     * @param width width in pixels.
+     * @param height height in pixels.
+     * @param params parameters of the background, like colors.
+     */
+    synchronized void put(int[] pixels, int width, int height, int... params) {
+        backgrounds.put(new Key(width, height, params), pixels);
+    }
+
+    private static final class Key {
+
+        private final int width;
+        private final int height;
+        private final int[] params;
+
+        Key(int width, int height, int[] params) {
+            this.width = width;
+            this.height = height;
+            this.params = params;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && Arrays.equals(params, other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + Arrays.hashCode(params);
+        }
+    }
+}
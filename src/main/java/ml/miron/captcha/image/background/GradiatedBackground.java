@@ -7,18 +7,27 @@ import java.awt.RenderingHints;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 
+import ml.miron.captcha.util.RasterUtil;
+import ml.miron.captcha.util.TileExecutor;
+
 /**
  * Creates a gradiated background with the given <i>from</i> and <i>to</i>
  * Color values. If none are specified they default to light gray and white
  * respectively.
+ * <p>
+ * The gradient is rendered once per size and colors and then copied into each new image.
+ * </p>
  *
  * @author <a href="mailto:james.childers@gmail.com">James Childers</a>
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
  */
 public class GradiatedBackground extends AbstractBackground {
 
+    private static final BackgroundCache CACHE = new BackgroundCache(16);
+
     private final Color fromColor;
     private final Color toColor;
+    private final TileExecutor tiles;
 
     /**
      * Creates a gradiated background with defaults colors: from dark gray to white.
@@ -33,15 +42,55 @@ public class GradiatedBackground extends AbstractBackground {
      * @param to the instance of {@link java.awt.Color}.
      */
     public GradiatedBackground(Color from, Color to) {
+        this(from, to, TileExecutor.getDefault());
+    }
+
+    /**
+     * Creates a gradiated background with specified <i>from</i> and <i>to</i> colors and executor of large images.
+     * @param from the instance of {@link java.awt.Color}.
+     * @param to the instance of {@link java.awt.Color}.
+     * @param tiles the instance of {@link TileExecutor}.
+     */
+    public GradiatedBackground(Color from, Color to, TileExecutor tiles) {
         fromColor = from;
         toColor = to;
+        this.tiles = tiles;
     }
 
     @Override
     public BufferedImage getBackground(int width, int height) {
         // create an opaque image
         BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        fillBackground(img);
+        return img;
+    }
+
+    @Override
+    public void fillBackground(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        final int[] gradient = getGradient(width, height);
+        final int[] pixels = RasterUtil.getPixels(image);
+        if (pixels != null) {
+            final int stride = width;
+            tiles.forRows(width, height, new TileExecutor.RowTask() {
+                @Override
+                public void run(int fromRow, int toRow) {
+                    System.arraycopy(gradient, fromRow * stride, pixels, fromRow * stride, (toRow - fromRow) * stride);
+                }
+            });
+        } else {
+            image.setRGB(0, 0, width, height, gradient, 0, width);
+        }
+    }
 
+    private int[] getGradient(int width, int height) {
+        int[] gradient = CACHE.get(width, height, fromColor.getRGB(), toColor.getRGB());
+        if (gradient != null) {
+            return gradient;
+        }
+
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         Graphics2D g = img.createGraphics();
         RenderingHints hints = new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
@@ -53,11 +102,11 @@ public class GradiatedBackground extends AbstractBackground {
         g.setPaint(ytow);
         // draw gradient color
         g.fill(new Rectangle2D.Double(0, 0, width, height));
-
-        // draw the transparent image over the background
-        g.drawImage(img, 0, 0, null);
         g.dispose();
 
-        return img;
+        // opaque ARGB, so the pixels can be copied into images with and without alpha
+        gradient = img.getRGB(0, 0, width, height, null, 0, width);
+        CACHE.put(gradient, width, height, fromColor.getRGB(), toColor.getRGB());
+        return gradient;
     }
 }
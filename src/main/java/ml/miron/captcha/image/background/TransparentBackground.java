@@ -1,8 +1,10 @@
 package ml.miron.captcha.image.background;
 
-import java.awt.AlphaComposite;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import ml.miron.captcha.util.RasterUtil;
+import ml.miron.captcha.util.TileExecutor;
 
 /**
  * Generates a transparent background.
@@ -12,15 +14,43 @@ import java.awt.image.BufferedImage;
  */
 public class TransparentBackground extends AbstractBackground {
 
+    private final TileExecutor tiles;
+
+    /**
+     * Creates a transparent background.
+     */
+    public TransparentBackground() {
+        this(TileExecutor.getDefault());
+    }
+
+    /**
+     * Creates a transparent background with specified executor of large images.
+     * @param tiles the instance of {@link TileExecutor}.
+     */
+    public TransparentBackground(TileExecutor tiles) {
+        this.tiles = tiles;
+    }
+
     @Override
     public BufferedImage getBackground(int width, int height) {
-        BufferedImage bg = new BufferedImage(width, height, BufferedImage.TRANSLUCENT);
-        Graphics2D g = bg.createGraphics();
-
-        g.setComposite(AlphaComposite.getInstance(AlphaComposite.CLEAR, 0.0f));
-        g.fillRect(0, 0, width, height);
+        // A new image is fully transparent already
+        return new BufferedImage(width, height, BufferedImage.TRANSLUCENT);
+    }
 
-        return bg;
+    @Override
+    public void fillBackground(BufferedImage image) {
+        final int[] pixels = RasterUtil.getPixels(image);
+        if (pixels == null) {
+            super.fillBackground(image);
+            return;
+        }
+        final int width = image.getWidth();
+        tiles.forRows(width, image.getHeight(), new TileExecutor.RowTask() {
+            @Override
+            public void run(int fromRow, int toRow) {
+                Arrays.fill(pixels, fromRow * width, toRow * width, 0);
+            }
+        });
     }
 
 }
@@ -0,0 +1,259 @@
+package ml.miron.captcha.image.encoder;
+
+import java.util.Arrays;
+
+/**
+ * Reduces packed ARGB pixels to a palette of limited size.
+ * <p>
+ * If the image has no more distinct colors than allowed the palette is exact. Otherwise the
+ * colors are divided by median cut: the box of colors with the widest channel range is split
+ * at the weighted median of that channel until there are enough boxes, and every box is
+ * represented by the weighted mean of its colors.
+ * </p>
+ * <p>
+ * An instance keeps its working buffers between calls and must not be shared between threads.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class PaletteQuantizer {
+
+    /**
+     * Maximum palette size of PNG.
+     */
+    public static final int MAX_COLORS = 256;
+
+    private static final int EMPTY = -1;
+    private static final int[] SHIFTS = {24, 16, 8, 0};
+
+    private int[] keys = new int[0];
+    private int[] values = new int[0];
+    private int mask;
+    private int hashShift;
+    private int[] colors = new int[0];
+    private int[] counts = new int[0];
+    private int[] tmpColors = new int[0];
+    private int[] tmpCounts = new int[0];
+    private byte[] indices = new byte[0];
+    private final int[] boxes = new int[MAX_COLORS + 1];
+    private final int[] boxRanges = new int[MAX_COLORS];
+    private final int[] boxShifts = new int[MAX_COLORS];
+    private final int[] buckets = new int[257];
+    private final int[] palette = new int[MAX_COLORS];
+    private int size;
+
+    /**
+     * Quantizes the first <code>length</code> pixels. The result is available through
+     * {@link #getPalette()}, {@link #getSize()} and {@link #getIndices()} until the next call.
+     * @param argb packed ARGB pixels.
+     * @param length number of pixels.
+     * @param maxColors maximum palette size, from 1 to 256.
+     */
+    public void quantize(int[] argb, int length, int maxColors) {
+        if (maxColors < 1 || maxColors > MAX_COLORS) {
+            throw new IllegalArgumentException("Palette size must be between 1 and 256, got " + maxColors);
+        }
+        int distinct = histogram(argb, length);
+        if (distinct == 0) {
+            size = 0;
+            return;
+        }
+        int boxCount = medianCut(distinct, maxColors);
+
+        // Palette entry of each box and the box of each color
+        size = boxCount;
+        for (int b = 0; b < boxCount; b++) {
+            long a = 0;
+            long r = 0;
+            long g = 0;
+            long bl = 0;
+            long total = 0;
+            for (int i = boxes[b]; i < boxes[b + 1]; i++) {
+                long n = counts[i];
+                int c = colors[i];
+                a += n * (c >>> 24);
+                r += n * ((c >> 16) & 0xff);
+                g += n * ((c >> 8) & 0xff);
+                bl += n * (c & 0xff);
+                total += n;
+                values[slot(c)] = b;
+            }
+            long half = total / 2;
+            palette[b] = (int) ((a + half) / total) << 24 | (int) ((r + half) / total) << 16
+                    | (int) ((g + half) / total) << 8 | (int) ((bl + half) / total);
+        }
+
+        if (indices.length < length) {
+            indices = new byte[length];
+        }
+        for (int i = 0; i < length; i++) {
+            indices[i] = (byte) values[slot(argb[i])];
+        }
+    }
+
+    /**
+     * Returns the palette as packed ARGB colors; only the first {@link #getSize()} entries are valid.
+     * @return see description.
+     */
+    public int[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * Returns the number of colors in the palette.
+     * @return see description.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the palette index of every pixel.
+     * @return see description.
+     */
+    public byte[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * Counts the distinct colors into <code>colors</code> and <code>counts</code>.
+     * @return number of distinct colors.
+     */
+    private int histogram(int[] argb, int length) {
+        int capacity = Integer.highestOneBit(Math.max(length, 1) * 2 - 1) << 1;
+        if (keys.length < capacity) {
+            keys = new int[capacity];
+            values = new int[capacity];
+        }
+        mask = capacity - 1;
+        hashShift = Integer.numberOfLeadingZeros(mask);
+        Arrays.fill(values, 0, capacity, EMPTY);
+
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            int c = argb[i];
+            int s = slot(c);
+            if (values[s] == EMPTY) {
+                keys[s] = c;
+                values[s] = distinct++;
+            }
+        }
+
+        if (colors.length < distinct) {
+            colors = new int[distinct];
+            counts = new int[distinct];
+            tmpColors = new int[distinct];
+            tmpCounts = new int[distinct];
+        }
+        Arrays.fill(counts, 0, distinct, 0);
+        for (int i = 0; i < length; i++) {
+            int c = argb[i];
+            int idx = values[slot(c)];
+            colors[idx] = c;
+            counts[idx]++;
+        }
+        return distinct;
+    }
+
+    private int slot(int c) {
+        int s = (c * 0x9E3779B9) >>> hashShift;
+        while (values[s] != EMPTY && keys[s] != c) {
+            s = (s + 1) & mask;
+        }
+        return s;
+    }
+
+    /**
+     * Splits the colors into at most <code>maxColors</code> boxes, reordering them so that
+     * the box <code>b</code> is the range [<code>boxes[b]</code>, <code>boxes[b + 1]</code>).
+     * @return number of boxes.
+     */
+    private int medianCut(int distinct, int maxColors) {
+        boxes[0] = 0;
+        boxes[1] = distinct;
+        measure(0);
+        int boxCount = 1;
+        while (boxCount < maxColors) {
+            int widest = 0;
+            for (int b = 1; b < boxCount; b++) {
+                if (boxRanges[b] > boxRanges[widest]) {
+                    widest = b;
+                }
+            }
+            if (boxRanges[widest] == 0) {
+                // Every box holds a single color
+                break;
+            }
+            int split = split(boxes[widest], boxes[widest + 1], boxShifts[widest]);
+            System.arraycopy(boxes, widest + 1, boxes, widest + 2, boxCount - widest);
+            System.arraycopy(boxRanges, widest + 1, boxRanges, widest + 2, boxCount - widest - 1);
+            System.arraycopy(boxShifts, widest + 1, boxShifts, widest + 2, boxCount - widest - 1);
+            boxes[widest + 1] = split;
+            boxCount++;
+            measure(widest);
+            measure(widest + 1);
+        }
+        return boxCount;
+    }
+
+    /**
+     * Finds the channel with the widest range of values in the box.
+     */
+    private void measure(int box) {
+        boxRanges[box] = 0;
+        for (int shift : SHIFTS) {
+            int min = 255;
+            int max = 0;
+            for (int i = boxes[box]; i < boxes[box + 1]; i++) {
+                int v = (colors[i] >>> shift) & 0xff;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > boxRanges[box]) {
+                boxRanges[box] = max - min;
+                boxShifts[box] = shift;
+            }
+        }
+    }
+
+    /**
+     * Sorts the colors of the range by the channel and returns the index after the weighted median.
+     */
+    private int split(int from, int to, int shift) {
+        Arrays.fill(buckets, 0);
+        long total = 0;
+        for (int i = from; i < to; i++) {
+            buckets[((colors[i] >>> shift) & 0xff) + 1]++;
+            total += counts[i];
+        }
+        for (int v = 0; v < 256; v++) {
+            buckets[v + 1] += buckets[v];
+        }
+        for (int i = from; i < to; i++) {
+            int pos = from + buckets[(colors[i] >>> shift) & 0xff]++;
+            tmpColors[pos] = colors[i];
+            tmpCounts[pos] = counts[i];
+        }
+        System.arraycopy(tmpColors, from, colors, from, to - from);
+        System.arraycopy(tmpCounts, from, counts, from, to - from);
+
+        long sum = 0;
+        int i = from;
+        while (i < to - 1 && (sum += counts[i]) * 2 < total) {
+            i++;
+        }
+        int split = i + 1;
+        // Never split between equal values of the channel
+        int value = (colors[i] >>> shift) & 0xff;
+        while (split < to && ((colors[split] >>> shift) & 0xff) == value) {
+            split++;
+        }
+        if (split == to) {
+            split = i;
+            while (split > from && ((colors[split - 1] >>> shift) & 0xff) == value) {
+                split--;
+            }
+        }
+        return split;
+    }
+}
@@ -6,23 +6,32 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.geom.CubicCurve2D;
 import java.awt.geom.PathIterator;
-import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
-import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Random;
 
+import ml.miron.captcha.util.RandomSource;
+
 /**
- * Adds a randomly curved line to the image.
+ * Adds randomly curved lines to the image.
+ * <p>
+ * The curves are flattened into a small coordinate buffer and all of them are drawn through
+ * a single graphics context. The segments are drawn as separate lines between whole pixels,
+ * which the antialiasing rasterizer handles several times faster than one stroked path.
+ * </p>
  *
  * @author <a href="mailto:james.childers@gmail.com">James Childers</a>
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
  */
 public class CurvedLineNoiseProducer implements NoiseProducer {
 
-    private static final Random RAND = new SecureRandom();
+    // Flattening tolerance of the curves in pixels
+    private static final double FLATNESS = 2;
 
     private final Color color;
-    private final float width;
+    private final BasicStroke stroke;
+    private final int curves;
+    private final RandomSource random;
 
     /**
      * Creates a {@link CurvedLineNoiseProducer} with default color and width.
@@ -37,59 +46,94 @@ public class CurvedLineNoiseProducer implements NoiseProducer {
      * @param width width of line.
      */
     public CurvedLineNoiseProducer(Color color, float width) {
+        this(color, width, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link CurvedLineNoiseProducer} with specified color, width and source of randomness.
+     * @param color color of line.
+     * @param width width of line.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public CurvedLineNoiseProducer(Color color, float width, RandomSource random) {
+        this(color, width, 1, random);
+    }
+
+    /**
+     * Creates a {@link CurvedLineNoiseProducer} which draws the given number of curves at once.
+     * @param color color of lines.
+     * @param width width of lines.
+     * @param curves number of curves.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public CurvedLineNoiseProducer(Color color, float width, int curves, RandomSource random) {
+        if (curves < 1) {
+            throw new IllegalArgumentException("At least one curve expected.");
+        }
         this.color = color;
-        this.width = width;
+        this.stroke = new BasicStroke(width);
+        this.curves = curves;
+        this.random = random;
     }
 
     @Override
     public void makeNoise(BufferedImage image) {
         int imageWidth = image.getWidth();
         int imageHeight = image.getHeight();
+        Random rand = random.fast();
+        // A few hundred bytes, not worth keeping in the threads
+        Buffers buffers = new Buffers();
+        CubicCurve2D.Float cc = buffers.curve;
+
+        Graphics2D graph = image.createGraphics();
+        graph.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graph.setColor(color);
+        graph.setStroke(stroke);
 
-        // the curve from where the points are taken
-        CubicCurve2D cc = new CubicCurve2D.Float(imageWidth * .1f, imageHeight
-                * RAND.nextFloat(), imageWidth * .1f, imageHeight
-                * RAND.nextFloat(), imageWidth * .25f, imageHeight
-                * RAND.nextFloat(), imageWidth * .9f, imageHeight
-                * RAND.nextFloat());
-
-        // creates an iterator to define the boundary of the flattened curve
-        PathIterator pi = cc.getPathIterator(null, 2);
-        Point2D[] tmp = new Point2D[200];
-        int i = 0;
-
-        // while pi is iterating the curve, adds points to tmp array
-        while (!pi.isDone()) {
-            float[] coords = new float[6];
-            int i1 = pi.currentSegment(coords);
-            if (i1 == PathIterator.SEG_MOVETO || i1 == PathIterator.SEG_LINETO) {
-                tmp[i] = new Point2D.Float(coords[0], coords[1]);
+        for (int n = 0; n < curves; n++) {
+            // the curve from where the points are taken
+            cc.setCurve(imageWidth * .1f, imageHeight * rand.nextFloat(),
+                    imageWidth * .1f, imageHeight * rand.nextFloat(),
+                    imageWidth * .25f, imageHeight * rand.nextFloat(),
+                    imageWidth * .9f, imageHeight * rand.nextFloat());
+
+            // the points where the line changes direction
+            int count = buffers.flatten(cc.getPathIterator(null, FLATNESS));
+            int[] points = buffers.points;
+            for (int i = 2; i < count; i += 2) {
+                graph.drawLine(points[i - 2], points[i - 1], points[i], points[i + 1]);
             }
-            i++;
-            pi.next();
         }
 
-        // the points where the line changes the stroke and direction
-        Point2D[] pts = new Point2D[i];
-        // copies points from tmp to pts
-        System.arraycopy(tmp, 0, pts, 0, i);
+        graph.dispose();
+    }
 
-        Graphics2D graph = (Graphics2D) image.getGraphics();
-        graph.setRenderingHints(new RenderingHints(
-                RenderingHints.KEY_ANTIALIASING,
-                RenderingHints.VALUE_ANTIALIAS_ON));
+    /**
+     * Working buffers of a call.
+     */
+    private static final class Buffers {
 
-        graph.setColor(color);
+        private final CubicCurve2D.Float curve = new CubicCurve2D.Float();
+        private final float[] segment = new float[6];
+        private int[] points = new int[64];
 
-        // for the maximum 3 point change the stroke and direction
-        for (i = 0; i < pts.length - 1; i++) {
-            if (i < 3) {
-                graph.setStroke(new BasicStroke(this.width));
+        /**
+         * Copies the points of the flattened curve, snapped to the pixel grid, into <code>points</code>.
+         * @return number of coordinates.
+         */
+        int flatten(PathIterator pi) {
+            int count = 0;
+            for (; !pi.isDone(); pi.next()) {
+                int type = pi.currentSegment(segment);
+                if (type == PathIterator.SEG_MOVETO || type == PathIterator.SEG_LINETO) {
+                    if (count + 2 > points.length) {
+                        points = Arrays.copyOf(points, points.length * 2);
+                    }
+                    points[count++] = (int) segment[0];
+                    points[count++] = (int) segment[1];
+                }
             }
-            graph.drawLine((int) pts[i].getX(), (int) pts[i].getY(),
-                    (int) pts[i + 1].getX(), (int) pts[i + 1].getY());
+            return count;
         }
-
-        graph.dispose();
     }
 }
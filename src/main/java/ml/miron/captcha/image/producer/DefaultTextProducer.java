@@ -2,6 +2,8 @@ package ml.miron.captcha.image.producer;
 
 import java.util.Random;
 
+import ml.miron.captcha.util.RandomSource;
+
 /**
  * Produces text of a given length from a given array of characters.
  *
@@ -10,7 +12,6 @@ import java.util.Random;
  */
 public class DefaultTextProducer implements TextProducer {
 
-    private static final Random RANDOM = new Random();
     private static final int DEFAULT_LENGTH = 5;
     private static final char[] DEFAULT_CHARS = new char[]{'a', 'b', 'c', 'd',
             'e', 'f', 'g', 'h', 'k', 'm', 'n', 'p', 'r', 'w', 'x', 'y',
@@ -22,7 +23,7 @@ public class DefaultTextProducer implements TextProducer {
      * Creates a {@link DefaultTextProducer} with default length and random characters.
      */
     public DefaultTextProducer() {
-        text = generateText(DEFAULT_LENGTH, DEFAULT_CHARS);
+        this(DEFAULT_LENGTH, DEFAULT_CHARS);
     }
 
     /**
@@ -30,7 +31,7 @@ public class DefaultTextProducer implements TextProducer {
      * @param length length of text.
      */
     public DefaultTextProducer(int length) {
-        text = generateText(length, DEFAULT_CHARS);
+        this(length, DEFAULT_CHARS);
     }
 
     /**
@@ -39,7 +40,18 @@ public class DefaultTextProducer implements TextProducer {
      * @param dictionary characters for text.
      */
     public DefaultTextProducer(int length, char[] dictionary) {
-        text = generateText(length, dictionary);
+        this(length, dictionary, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link DefaultTextProducer} with specified length, characters and source of randomness.
+     * The text is taken from {@link RandomSource#secure()}.
+     * @param length length of text.
+     * @param dictionary characters for text.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public DefaultTextProducer(int length, char[] dictionary, RandomSource random) {
+        text = generateText(length, dictionary, random);
     }
 
     /**
@@ -55,11 +67,12 @@ public class DefaultTextProducer implements TextProducer {
         return text;
     }
 
-    private String generateText(int length, char[] dictionary) {
-        String txt = "";
+    private static String generateText(int length, char[] dictionary, RandomSource random) {
+        Random rand = random.secure();
+        char[] txt = new char[length];
         for (int i = 0; i < length; i++) {
-            txt += dictionary[RANDOM.nextInt(dictionary.length)];
+            txt[i] = dictionary[rand.nextInt(dictionary.length)];
         }
-        return txt;
+        return new String(txt);
     }
 }
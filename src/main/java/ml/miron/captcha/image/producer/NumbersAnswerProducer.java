@@ -1,5 +1,6 @@
 package ml.miron.captcha.image.producer;
 
+import ml.miron.captcha.util.RandomSource;
 
 /**
  * TextProducer implementation that will return a series of numbers.
@@ -21,12 +22,29 @@ public class NumbersAnswerProducer implements TextProducer {
         this(DEFAULT_LENGTH);
     }
 
+    /**
+     * Creates a {@link NumbersAnswerProducer} with default length and specified source of randomness.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public NumbersAnswerProducer(RandomSource random) {
+        this(DEFAULT_LENGTH, random);
+    }
+
     /**
      * Creates a {@link NumbersAnswerProducer} with specified length.
      * @param length length of text.
      */
     public NumbersAnswerProducer(int length) {
-        txtProd = new DefaultTextProducer(length, NUMBERS);
+        this(length, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link NumbersAnswerProducer} with specified length and source of randomness.
+     * @param length length of text.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public NumbersAnswerProducer(int length, RandomSource random) {
+        txtProd = new DefaultTextProducer(length, NUMBERS, random);
     }
 
     /**
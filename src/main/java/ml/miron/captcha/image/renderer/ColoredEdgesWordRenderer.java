@@ -5,29 +5,28 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
-import java.awt.Shape;
-import java.awt.font.FontRenderContext;
-import java.awt.font.TextAttribute;
-import java.awt.font.TextLayout;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
 import java.awt.image.BufferedImage;
-import java.security.SecureRandom;
-import java.text.AttributedCharacterIterator;
-import java.text.AttributedString;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+
+import ml.miron.captcha.util.RandomSource;
 
 /**
  * Implementation of {@link WordRenderer}.
  * A word with colored edges and adjustable stroke width.
+ * <p>
+ * The word outline is assembled from glyph outlines kept in a {@link GlyphOutlineCache},
+ * so text shaping happens only once per font and character.
+ * </p>
  *
  * @author <a href="mailto:james.childers@gmail.com">James Childers</a>
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
  */
 public class ColoredEdgesWordRenderer implements WordRenderer {
 
-    private static final Random RAND = new SecureRandom();
+    private static final GlyphOutlineCache DEFAULT_GLYPH_CACHE = new GlyphOutlineCache();
 
     private static final List<Color> DEFAULT_COLORS = new ArrayList<Color>();
     private static final List<Font> DEFAULT_FONTS = new ArrayList<Font>();
@@ -38,7 +37,9 @@ public class ColoredEdgesWordRenderer implements WordRenderer {
 
     private final List<Font> fonts;
     private final List<Color> colors;
-    private final float strokeWidth;
+    private final BasicStroke stroke;
+    private final GlyphOutlineCache glyphCache;
+    private final RandomSource random;
 
     static {
         DEFAULT_FONTS.add(new Font("Arial", Font.BOLD, 40));
@@ -68,9 +69,46 @@ public class ColoredEdgesWordRenderer implements WordRenderer {
      * @param strokeWidth stroke width.
      */
     public ColoredEdgesWordRenderer(List<Color> colors, List<Font> fonts, float strokeWidth) {
+        this(colors, fonts, strokeWidth, DEFAULT_GLYPH_CACHE);
+    }
+
+    /**
+     * Creates a {@link ColoredEdgesWordRenderer} with specified colors, fonts, stroke width and glyph cache.
+     * @param colors list of {@link java.awt.Color}.
+     * @param fonts list of {@link java.awt.Font}.
+     * @param strokeWidth stroke width.
+     * @param glyphCache the instance of {@link GlyphOutlineCache}.
+     */
+    public ColoredEdgesWordRenderer(List<Color> colors, List<Font> fonts, float strokeWidth,
+                                    GlyphOutlineCache glyphCache) {
+        this(colors, fonts, strokeWidth, glyphCache, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link ColoredEdgesWordRenderer} with specified colors, fonts, stroke width, glyph cache
+     * and source of randomness.
+     * @param colors list of {@link java.awt.Color}.
+     * @param fonts list of {@link java.awt.Font}.
+     * @param strokeWidth stroke width.
+     * @param glyphCache the instance of {@link GlyphOutlineCache}.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public ColoredEdgesWordRenderer(List<Color> colors, List<Font> fonts, float strokeWidth,
+                                    GlyphOutlineCache glyphCache, RandomSource random) {
+        this.random = random;
         this.colors = colors != null ? colors : DEFAULT_COLORS;
         this.fonts = fonts != null ? fonts : DEFAULT_FONTS;
-        this.strokeWidth = strokeWidth < 0 ? DEFAULT_STROKE_WIDTH : strokeWidth;
+        this.stroke = new BasicStroke(strokeWidth < 0 ? DEFAULT_STROKE_WIDTH : strokeWidth);
+        this.glyphCache = glyphCache;
+    }
+
+    /**
+     * Returns the glyph cache used by this renderer. Unless specified in the constructor,
+     * the cache is shared by all instances.
+     * @return see description.
+     */
+    public GlyphOutlineCache getGlyphCache() {
+        return glyphCache;
     }
 
     @Override
@@ -81,21 +119,25 @@ public class ColoredEdgesWordRenderer implements WordRenderer {
         hints.add(new RenderingHints(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY));
         g.setRenderingHints(hints);
 
-        AttributedString as = new AttributedString(word);
-        as.addAttribute(TextAttribute.FONT, getRandomFont());
-
-        FontRenderContext frc = g.getFontRenderContext();
-        AttributedCharacterIterator aci = as.getIterator();
-
-        TextLayout tl = new TextLayout(aci, frc);
+        Font font = getRandomFont();
         int xBaseline = (int) Math.round(image.getWidth() * XOFFSET);
         int yBaseline = image.getHeight() - (int) Math.round(image.getHeight() * YOFFSET);
-        Shape shape = tl.getOutline(AffineTransform.getTranslateInstance(xBaseline, yBaseline));
+
+        GeneralPath shape = new GeneralPath();
+        AffineTransform at = new AffineTransform();
+        float x = xBaseline;
+        for (int i = 0; i < word.length(); i++) {
+            GlyphOutlineCache.Glyph glyph = glyphCache.get(font, word.charAt(i));
+            at.setToTranslation(x, yBaseline);
+            shape.append(glyph.getOutline().getPathIterator(at), false);
+            x += glyph.getAdvance();
+        }
 
         g.setColor(getRandomColor());
-        g.setStroke(new BasicStroke(strokeWidth));
+        g.setStroke(stroke);
 
         g.draw(shape);
+        g.dispose();
     }
 
     private Color getRandomColor() {
@@ -111,7 +153,7 @@ public class ColoredEdgesWordRenderer implements WordRenderer {
             return objs.get(0);
         }
 
-        int i = RAND.nextInt(objs.size());
+        int i = random.fast().nextInt(objs.size());
         return objs.get(i);
     }
 }
@@ -7,11 +7,12 @@ import java.awt.RenderingHints;
 import java.awt.font.FontRenderContext;
 import java.awt.font.GlyphVector;
 import java.awt.image.BufferedImage;
-import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
+import ml.miron.captcha.util.RandomSource;
+
 /**
  * Default implementation of {@link WordRenderer}.
  *
@@ -20,7 +21,6 @@ import java.util.Random;
  */
 public class DefaultWordRenderer implements WordRenderer {
 
-    private static final Random RAND = new SecureRandom();
     private static final List<Color> DEFAULT_COLORS = new ArrayList<Color>();
     private static final List<Font> DEFAULT_FONTS = new ArrayList<Font>();
     // The text will be rendered 25%/5% of the image height/width from the X and Y axes
@@ -35,6 +35,7 @@ public class DefaultWordRenderer implements WordRenderer {
 
     private final List<Color> colors = new ArrayList<Color>();
     private final List<Font> fonts = new ArrayList<Font>();
+    private final RandomSource random;
 
     /**
      * Creates a {@link DefaultWordRenderer} with default color (black) and fonts (Arial and Courier).
@@ -49,12 +50,24 @@ public class DefaultWordRenderer implements WordRenderer {
      * @param fonts list of {@link java.awt.Font}.
      */
     public DefaultWordRenderer(List<Color> colors, List<Font> fonts) {
+        this(colors, fonts, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link DefaultWordRenderer} with specified colors, fonts and source of randomness.
+     * @param colors list of {@link java.awt.Color}.
+     * @param fonts list of {@link java.awt.Font}.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public DefaultWordRenderer(List<Color> colors, List<Font> fonts, RandomSource random) {
         this.colors.addAll(colors);
         this.fonts.addAll(fonts);
+        this.random = random;
     }
 
     @Override
     public void render(final String word, BufferedImage image) {
+        Random rand = random.fast();
         Graphics2D g = image.createGraphics();
 
         RenderingHints hints = new RenderingHints(
@@ -72,9 +85,9 @@ public class DefaultWordRenderer implements WordRenderer {
         for (char c : word.toCharArray()) {
             chars[0] = c;
 
-            g.setColor(colors.get(RAND.nextInt(colors.size())));
+            g.setColor(colors.get(rand.nextInt(colors.size())));
 
-            int choiceFont = RAND.nextInt(fonts.size());
+            int choiceFont = rand.nextInt(fonts.size());
             Font font = fonts.get(choiceFont);
             g.setFont(font);
 
@@ -84,5 +97,6 @@ public class DefaultWordRenderer implements WordRenderer {
             int width = (int) gv.getVisualBounds().getWidth();
             xBaseline = xBaseline + width;
         }
+        g.dispose();
     }
 }
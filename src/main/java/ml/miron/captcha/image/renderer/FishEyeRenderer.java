@@ -3,17 +3,37 @@ package ml.miron.captcha.image.renderer;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ml.miron.captcha.util.RandomSource;
+import ml.miron.captcha.util.RasterUtil;
+import ml.miron.captcha.util.TileExecutor;
 
 /**
  * Overlays a warped grid to the image.
+ * <p>
+ * The grid positions and the fisheye displacement depend only on the image size and the
+ * distortion radius, so both are computed once and cached. For images backed by a packed
+ * <code>int</code> raster each call is reduced to filling the grid lines and a single gather
+ * pass over the pixels inside the radius.
+ * </p>
  *
  * @author <a href="mailto:james.childers@gmail.com">James Childers</a>
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
  */
 public class FishEyeRenderer implements Renderer {
 
+    // Enough for the full radius range of several image sizes
+    private static final int MAX_CACHED_TABLES = 256;
+    private static final ConcurrentMap<Long, Grid> GRIDS = new ConcurrentHashMap<Long, Grid>();
+    private static final ConcurrentMap<Long, Table> TABLES = new ConcurrentHashMap<Long, Table>();
+
     private final Color hColor;
     private final Color vColor;
+    private final RandomSource random;
+    private final TileExecutor tiles;
 
     /**
      * Creates a warped grid with default black colors.
@@ -28,81 +48,144 @@ public class FishEyeRenderer implements Renderer {
      * @param vColor color for vertical lines.
      */
     public FishEyeRenderer(Color hColor, Color vColor) {
+        this(hColor, vColor, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a warped grid with specified colors and source of randomness.
+     * @param hColor color for horizontal lines.
+     * @param vColor color for vertical lines.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public FishEyeRenderer(Color hColor, Color vColor, RandomSource random) {
+        this(hColor, vColor, random, TileExecutor.getDefault());
+    }
+
+    /**
+     * Creates a warped grid with specified colors, source of randomness and executor of large images.
+     * @param hColor color for horizontal lines.
+     * @param vColor color for vertical lines.
+     * @param random the instance of {@link RandomSource}.
+     * @param tiles the instance of {@link TileExecutor}.
+     */
+    public FishEyeRenderer(Color hColor, Color vColor, RandomSource random, TileExecutor tiles) {
         this.hColor = hColor;
         this.vColor = vColor;
+        this.random = random;
+        this.tiles = tiles;
     }
 
     @Override
     public void gimp(BufferedImage image) {
+        int[] pixels = RasterUtil.getPixels(image);
+        // Translucent lines must be blended by Java2D
+        if (pixels == null || hColor.getAlpha() != 255 || vColor.getAlpha() != 255) {
+            gimpGraphics(image);
+            return;
+        }
+
         int height = image.getHeight();
         int width = image.getWidth();
 
-        int hstripes = height / 7;
-        int vstripes = width / 7;
+        Grid grid = getGrid(width, height);
+        int hRgb = hColor.getRGB();
+        for (int y : grid.rows) {
+            Arrays.fill(pixels, y * width, (y + 1) * width, hRgb);
+        }
+        int vRgb = vColor.getRGB();
+        for (int x : grid.columns) {
+            for (int i = x; i < pixels.length; i += width) {
+                pixels[i] = vRgb;
+            }
+        }
+
+        final Table table = getTable(width, height, ranInt(width / 4, width / 3));
+        // A copy per call: a frame kept per thread would stay with the threads of the container
+        final int[] source = pixels.clone();
+
+        final int[] target = pixels;
+        final int stride = width;
+        tiles.forRows(width, height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int fromRow, int toRow) {
+                gather(table, source, target, stride, Math.max(fromRow, table.firstRow),
+                        Math.min(toRow, table.lastRow));
+            }
+        });
+    }
+
+    private static void gather(Table table, int[] source, int[] pixels, int width, int fromRow, int toRow) {
+        int[] index = table.index;
+        for (int y = fromRow; y < toRow; y++) {
+            int row = y * width;
+            int k = table.offsets[y];
+            for (int x = row + table.from[y], to = row + table.to[y]; x < to; x++) {
+                pixels[x] = source[index[k++]];
+            }
+        }
+    }
 
-        // Calculate space between lines
-        int hspace = height / (hstripes + 1);
-        int vspace = width / (vstripes + 1);
+    private void gimpGraphics(BufferedImage image) {
+        int height = image.getHeight();
+        int width = image.getWidth();
 
+        Grid grid = getGrid(width, height);
         Graphics2D graph = (Graphics2D) image.getGraphics();
         // Draw the horizontal stripes
-        for (int i = hspace; i < height; i = i + hspace) {
+        for (int i : grid.rows) {
             graph.setColor(hColor);
             graph.drawLine(0, i, width, i);
         }
 
         // Draw the vertical stripes
-        for (int i = vspace; i < width; i = i + vspace) {
+        for (int i : grid.columns) {
             graph.setColor(vColor);
             graph.drawLine(i, 0, i, height);
         }
+        graph.dispose();
 
         // Create a pixel array of the original image.
         // we need this later to do the operations on..
-        int[] pix = new int[height * width];
-        int j = 0;
+        int[] pix = image.getRGB(0, 0, width, height, null, 0, width);
 
-        for (int j1 = 0; j1 < width; j1++) {
-            for (int k1 = 0; k1 < height; k1++) {
-                pix[j] = image.getRGB(j1, k1);
-                j++;
+        Table table = getTable(width, height, ranInt(width / 4, width / 3));
+        int[] index = table.index;
+        int k = 0;
+        for (int y = table.firstRow; y < table.lastRow; y++) {
+            for (int x = table.from[y]; x < table.to[y]; x++) {
+                image.setRGB(x, y, pix[index[k++]]);
             }
         }
+    }
 
-        double distance = ranInt(width / 4, width / 3);
-
-        // put the distortion in the (dead) middle
-        int wMid = image.getWidth() / 2;
-        int hMid = image.getHeight() / 2;
-
-        // again iterate over all pixels..
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-
-                int relX = x - wMid;
-                int relY = y - hMid;
-
-                double d1 = Math.sqrt(relX * relX + relY * relY);
-                if (d1 < distance) {
+    private int ranInt(int i, int j) {
+        return i + random.fast().nextInt(j - i + 1);
+    }
 
-                    int j2 = wMid
-                            + (int) (((fishEyeFormula(d1 / distance) * distance) / d1) * (x - wMid));
-                    int k2 = hMid
-                            + (int) (((fishEyeFormula(d1 / distance) * distance) / d1) * (y - hMid));
-                    image.setRGB(x, y, pix[j2 * height + k2]);
-                }
-            }
+    private static Grid getGrid(int width, int height) {
+        Long key = ((long) width << 32) | height;
+        Grid grid = GRIDS.get(key);
+        if (grid == null) {
+            grid = new Grid(width, height);
+            GRIDS.putIfAbsent(key, grid);
         }
-
-        graph.dispose();
+        return grid;
     }
 
-    private int ranInt(int i, int j) {
-        double d = Math.random();
-        return (int) (i + ((j - i) + 1) * d);
+    private static Table getTable(int width, int height, int distance) {
+        Long key = ((long) width << 42) | ((long) height << 21) | distance;
+        Table table = TABLES.get(key);
+        if (table == null) {
+            if (TABLES.size() >= MAX_CACHED_TABLES) {
+                TABLES.clear();
+            }
+            table = new Table(width, height, distance);
+            TABLES.putIfAbsent(key, table);
+        }
+        return table;
     }
 
-    private double fishEyeFormula(double s) {
+    private static double fishEyeFormula(double s) {
         if (s < 0.0D) {
             return 0.0D;
         }
@@ -112,4 +195,93 @@ public class FishEyeRenderer implements Renderer {
 
         return -0.75D * s * s * s + 1.5D * s * s + 0.25D * s;
     }
+
+    /**
+     * Positions of the grid lines for the given image size.
+     */
+    private static final class Grid {
+
+        private final int[] rows;
+        private final int[] columns;
+
+        Grid(int width, int height) {
+            int hstripes = height / 7;
+            int vstripes = width / 7;
+
+            // Calculate space between lines
+            int hspace = height / (hstripes + 1);
+            int vspace = width / (vstripes + 1);
+
+            rows = positions(hspace, height);
+            columns = positions(vspace, width);
+        }
+
+        private static int[] positions(int space, int limit) {
+            int[] result = new int[limit / space];
+            int n = 0;
+            for (int i = space; i < limit; i = i + space) {
+                result[n++] = i;
+            }
+            return Arrays.copyOf(result, n);
+        }
+    }
+
+    /**
+     * Fisheye lookup table: for each pixel inside the distortion radius the row-major index
+     * of the pixel it is copied from. The pixels inside the radius form the span
+     * [<code>from[y]</code>, <code>to[y]</code>) of every row between <code>firstRow</code>
+     * and <code>lastRow</code>, and <code>index</code> lists them row by row, starting
+     * from <code>offsets[y]</code>.
+     */
+    private static final class Table {
+
+        private final int[] from;
+        private final int[] to;
+        private final int[] offsets;
+        private final int[] index;
+        private final int firstRow;
+        private final int lastRow;
+
+        Table(int width, int height, double distance) {
+            from = new int[height];
+            to = new int[height];
+            offsets = new int[height];
+            int[] tmp = new int[width * height];
+            int k = 0;
+            int first = height;
+            int last = 0;
+
+            // put the distortion in the (dead) middle
+            int wMid = width / 2;
+            int hMid = height / 2;
+
+            for (int y = 0; y < height; y++) {
+                int relY = y - hMid;
+                from[y] = width;
+                offsets[y] = k;
+                for (int x = 0; x < width; x++) {
+                    int relX = x - wMid;
+
+                    double d1 = Math.sqrt(relX * relX + relY * relY);
+                    if (d1 < distance) {
+                        int j2 = wMid + (int) (((fishEyeFormula(d1 / distance) * distance) / d1) * relX);
+                        int k2 = hMid + (int) (((fishEyeFormula(d1 / distance) * distance) / d1) * relY);
+                        from[y] = Math.min(from[y], x);
+                        to[y] = x + 1;
+                        tmp[k++] = k2 * width + j2;
+                    }
+                }
+                if (to[y] > 0) {
+                    first = Math.min(first, y);
+                    last = y + 1;
+                } else {
+                    from[y] = 0;
+                }
+            }
+
+            index = Arrays.copyOf(tmp, k);
+            firstRow = first;
+            lastRow = Math.max(first, last);
+        }
+    }
 }
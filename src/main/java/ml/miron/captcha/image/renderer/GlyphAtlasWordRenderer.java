@@ -0,0 +1,256 @@
+package ml.miron.captcha.image.renderer;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ml.miron.captcha.util.RandomSource;
+import ml.miron.captcha.util.RasterUtil;
+
+/**
+ * Implementation of {@link WordRenderer} backed by a glyph atlas.
+ * <p>
+ * Every character of the dictionary is rasterized once per font, when the renderer is created,
+ * into an antialiased alpha mask. Rendering a word only tints these masks and blends them straight
+ * into the raster of the image, so the Java2D text pipeline is not involved per request.
+ * Characters outside the dictionary are rasterized on first use. The layout is the same as the one
+ * of {@link DefaultWordRenderer}: every character gets a random color and font.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public class GlyphAtlasWordRenderer implements WordRenderer {
+
+    private static final List<Color> DEFAULT_COLORS = new ArrayList<Color>();
+    private static final List<Font> DEFAULT_FONTS = new ArrayList<Font>();
+    private static final char[] DEFAULT_DICTIONARY = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            .toCharArray();
+    // Same context as an antialiased Graphics2D with identity transform
+    private static final FontRenderContext FRC = new FontRenderContext(null, true, false);
+    // The text will be rendered 25%/5% of the image height/width from the X and Y axes
+    private static final double YOFFSET = 0.25;
+    private static final double XOFFSET = 0.05;
+
+    static {
+        DEFAULT_COLORS.add(Color.BLACK);
+        DEFAULT_FONTS.add(new Font("Arial", Font.BOLD, 40));
+        DEFAULT_FONTS.add(new Font("Courier", Font.BOLD, 40));
+    }
+
+    private final int[] colors;
+    private final Font[] fonts;
+    private final RandomSource random;
+    private final ConcurrentMap<Integer, Glyph> atlas = new ConcurrentHashMap<Integer, Glyph>();
+
+    /**
+     * Creates a {@link GlyphAtlasWordRenderer} with default color (black), fonts (Arial and Courier)
+     * and dictionary (digits and latin letters).
+     */
+    public GlyphAtlasWordRenderer() {
+        this(DEFAULT_COLORS, DEFAULT_FONTS);
+    }
+
+    /**
+     * Creates a {@link GlyphAtlasWordRenderer} with specified colors and fonts,
+     * and default dictionary (digits and latin letters).
+     * @param colors list of {@link java.awt.Color}.
+     * @param fonts list of {@link java.awt.Font}.
+     */
+    public GlyphAtlasWordRenderer(List<Color> colors, List<Font> fonts) {
+        this(colors, fonts, DEFAULT_DICTIONARY);
+    }
+
+    /**
+     * Creates a {@link GlyphAtlasWordRenderer} with specified colors, fonts and dictionary.
+     * @param colors list of {@link java.awt.Color}.
+     * @param fonts list of {@link java.awt.Font}.
+     * @param dictionary characters rasterized in advance.
+     */
+    public GlyphAtlasWordRenderer(List<Color> colors, List<Font> fonts, char[] dictionary) {
+        this(colors, fonts, dictionary, RandomSource.getDefault());
+    }
+
+    /**
+     * Creates a {@link GlyphAtlasWordRenderer} with specified colors, fonts, dictionary and source of randomness.
+     * @param colors list of {@link java.awt.Color}.
+     * @param fonts list of {@link java.awt.Font}.
+     * @param dictionary characters rasterized in advance.
+     * @param random the instance of {@link RandomSource}.
+     */
+    public GlyphAtlasWordRenderer(List<Color> colors, List<Font> fonts, char[] dictionary, RandomSource random) {
+        if (colors.isEmpty() || fonts.isEmpty()) {
+            throw new IllegalArgumentException("At least one color and one font expected.");
+        }
+        this.colors = new int[colors.size()];
+        for (int i = 0; i < this.colors.length; i++) {
+            this.colors[i] = colors.get(i).getRGB();
+        }
+        this.fonts = fonts.toArray(new Font[fonts.size()]);
+        this.random = random;
+        for (int i = 0; i < this.fonts.length; i++) {
+            for (char c : dictionary) {
+                getGlyph(i, c);
+            }
+        }
+    }
+
+    @Override
+    public void render(final String word, BufferedImage image) {
+        int[] pixels = RasterUtil.getPixels(image);
+        Random rand = random.fast();
+        int xBaseline = (int) Math.round(image.getWidth() * XOFFSET);
+        int yBaseline = image.getHeight() - (int) Math.round(image.getHeight() * YOFFSET);
+
+        for (int i = 0; i < word.length(); i++) {
+            int color = colors[rand.nextInt(colors.length)];
+            Glyph glyph = getGlyph(rand.nextInt(fonts.length), word.charAt(i));
+            if (pixels != null) {
+                glyph.blend(pixels, image.getWidth(), image.getHeight(), image.getType(), xBaseline, yBaseline, color);
+            } else {
+                glyph.blend(image, xBaseline, yBaseline, color);
+            }
+            xBaseline += glyph.advance;
+        }
+    }
+
+    private Glyph getGlyph(int font, char c) {
+        Integer key = (font << 16) | c;
+        Glyph glyph = atlas.get(key);
+        if (glyph == null) {
+            glyph = new Glyph(fonts[font], c);
+            atlas.putIfAbsent(key, glyph);
+        }
+        return glyph;
+    }
+
+    private static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+
+    /**
+     * Alpha mask of a single character, placed relative to the baseline origin.
+     */
+    private static final class Glyph {
+
+        private final byte[] mask;
+        private final int left;
+        private final int top;
+        private final int width;
+        private final int height;
+        private final int advance;
+
+        Glyph(Font font, char c) {
+            GlyphVector gv = font.createGlyphVector(FRC, new char[]{c});
+            advance = (int) gv.getVisualBounds().getWidth();
+
+            Rectangle bounds = gv.getPixelBounds(FRC, 0, 0);
+            left = bounds.x;
+            top = bounds.y;
+            width = Math.max(bounds.width, 0);
+            height = Math.max(bounds.height, 0);
+            mask = new byte[width * height];
+            if (mask.length == 0) {
+                return;
+            }
+
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.drawGlyphVector(gv, -left, -top);
+            g.dispose();
+
+            int[] argb = img.getRGB(0, 0, width, height, null, 0, width);
+            for (int i = 0; i < argb.length; i++) {
+                mask[i] = (byte) (argb[i] >>> 24);
+            }
+        }
+
+        /**
+         * Blends the tinted mask into a packed <code>int</code> raster.
+         */
+        void blend(int[] pixels, int imageWidth, int imageHeight, int type, int x, int y, int color) {
+            int x0 = Math.max(0, x + left);
+            int x1 = Math.min(imageWidth, x + left + width);
+            int y0 = Math.max(0, y + top);
+            int y1 = Math.min(imageHeight, y + top + height);
+            int ca = color >>> 24;
+            // Pixels of an opaque image carry no alpha
+            int opaque = type == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+            for (int py = y0; py < y1; py++) {
+                int m = (py - y - top) * width + (x0 - x - left);
+                int p = py * imageWidth + x0;
+                for (int px = x0; px < x1; px++, m++, p++) {
+                    int coverage = mask[m] & 0xff;
+                    if (coverage != 0) {
+                        int a = div255(coverage * ca);
+                        pixels[p] = type == BufferedImage.TYPE_INT_ARGB_PRE
+                                ? blendPremultiplied(pixels[p], color, a) : blend(pixels[p] | opaque, color, a);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Blends the tinted mask into any other kind of image.
+         */
+        void blend(BufferedImage image, int x, int y, int color) {
+            int x0 = Math.max(0, x + left);
+            int x1 = Math.min(image.getWidth(), x + left + width);
+            int y0 = Math.max(0, y + top);
+            int y1 = Math.min(image.getHeight(), y + top + height);
+            int ca = color >>> 24;
+            for (int py = y0; py < y1; py++) {
+                int m = (py - y - top) * width + (x0 - x - left);
+                for (int px = x0; px < x1; px++, m++) {
+                    int coverage = mask[m] & 0xff;
+                    if (coverage != 0) {
+                        image.setRGB(px, py, blend(image.getRGB(px, py), color, div255(coverage * ca)));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Source-over of a color with alpha <code>a</code> onto a non-premultiplied pixel.
+         */
+        private static int blend(int dst, int src, int a) {
+            if (a == 255) {
+                return src | 0xff000000;
+            }
+            int da = div255((dst >>> 24) * (255 - a));
+            int oa = a + da;
+            if (oa == 0) {
+                return 0;
+            }
+            int r = (((src >> 16) & 0xff) * a + ((dst >> 16) & 0xff) * da + (oa >> 1)) / oa;
+            int g = (((src >> 8) & 0xff) * a + ((dst >> 8) & 0xff) * da + (oa >> 1)) / oa;
+            int b = ((src & 0xff) * a + (dst & 0xff) * da + (oa >> 1)) / oa;
+            return (oa << 24) | (r << 16) | (g << 8) | b;
+        }
+
+        /**
+         * Source-over of a color with alpha <code>a</code> onto a premultiplied pixel.
+         */
+        private static int blendPremultiplied(int dst, int src, int a) {
+            int na = 255 - a;
+            int oa = a + div255((dst >>> 24) * na);
+            int r = div255(((src >> 16) & 0xff) * a) + div255(((dst >> 16) & 0xff) * na);
+            int g = div255(((src >> 8) & 0xff) * a) + div255(((dst >> 8) & 0xff) * na);
+            int b = div255((src & 0xff) * a) + div255((dst & 0xff) * na);
+            return (oa << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+}
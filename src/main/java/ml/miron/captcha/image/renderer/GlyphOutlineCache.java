@@ -0,0 +1,149 @@
+package ml.miron.captcha.image.renderer;
+
+import java.awt.Font;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe cache of glyph outlines and advances per font and character.
+ * The outlines are placed with the baseline origin at (0, 0) and must not be modified.
+ * When the cache is full it is cleared and filled again on demand.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class GlyphOutlineCache {
+
+    private static final int DEFAULT_MAX_SIZE = 1024;
+    // Same context as the antialiased Graphics2D of the word renderers, with identity transform
+    private static final FontRenderContext FRC = new FontRenderContext(null, true, false);
+
+    private final ConcurrentMap<Key, Glyph> glyphs = new ConcurrentHashMap<Key, Glyph>();
+    private final int maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a {@link GlyphOutlineCache} for up to 1024 glyphs.
+     */
+    public GlyphOutlineCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a {@link GlyphOutlineCache} with specified maximum number of glyphs.
+     * @param maxSize maximum number of glyphs.
+     */
+    public GlyphOutlineCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive.");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the glyph of the given character in the given font.
+     * @param font the instance of {@link Font}.
+     * @param c character.
+     * @return see description.
+     */
+    public Glyph get(Font font, char c) {
+        Key key = new Key(font, c);
+        Glyph glyph = glyphs.get(key);
+        if (glyph != null) {
+            hits.incrementAndGet();
+            return glyph;
+        }
+
+        misses.incrementAndGet();
+        GlyphVector gv = font.createGlyphVector(FRC, new char[]{c});
+        glyph = new Glyph(gv.getGlyphOutline(0), gv.getGlyphMetrics(0).getAdvance());
+        if (glyphs.size() >= maxSize) {
+            glyphs.clear();
+        }
+        glyphs.put(key, glyph);
+        return glyph;
+    }
+
+    /**
+     * Returns the number of lookups served from the cache.
+     * @return see description.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups which required shaping the glyph.
+     * @return see description.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of cached glyphs.
+     * @return see description.
+     */
+    public int size() {
+        return glyphs.size();
+    }
+
+    /**
+     * Outline and advance of a single character.
+     */
+    public static final class Glyph {
+
+        private final Shape outline;
+        private final float advance;
+
+        private Glyph(Shape outline, float advance) {
+            this.outline = outline;
+            this.advance = advance;
+        }
+
+        /**
+         * Returns the outline with the baseline origin at (0, 0).
+         * @return see description.
+         */
+        public Shape getOutline() {
+            return outline;
+        }
+
+        /**
+         * Returns the horizontal advance.
+         * @return see description.
+         */
+        public float getAdvance() {
+            return advance;
+        }
+    }
+
+    private static final class Key {
+
+        private final Font font;
+        private final char c;
+
+        Key(Font font, char c) {
+            this.font = font;
+            this.c = c;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return c == other.c && font.equals(other.font);
+        }
+
+        @Override
+        public int hashCode() {
+            return font.hashCode() * 31 + c;
+        }
+    }
+}
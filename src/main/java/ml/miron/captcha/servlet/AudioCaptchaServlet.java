@@ -1,18 +1,17 @@
 package ml.miron.captcha.servlet;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
-import javax.servlet.SingleThreadModel;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import ml.miron.captcha.audio.AudioCaptcha;
+import ml.miron.captcha.audio.effect.AudioEffect;
 import ml.miron.captcha.audio.producer.NumberVoiceProducer;
-import ml.miron.captcha.audio.producer.VoiceProducer;
 import ml.miron.captcha.image.producer.DefaultTextProducer;
 import ml.miron.captcha.util.CaptchaServletUtil;
 
@@ -20,34 +19,101 @@ import static ml.miron.captcha.util.CaptchaServletUtil.CAPTCHA_ATTRIBUTE;
 
 /**
  * Generates a new {@link AudioCaptcha} and writes the audio to the response.
+ * <p>
+ * The servlet serves requests concurrently: the voice and noise producers come from the
+ * {@link CaptchaConfig} of the web application, which is immutable and shared by all requests.
+ * </p>
+ * <p>
+ * If the <code>warmup-count</code> init-param is set, {@link #init()} preloads the voices and noises
+ * and generates that many captchas before the servlet is put into service. The servlet context
+ * attribute {@link #READY_ATTRIBUTE} is set once the servlet is initialized.
+ * </p>
+ * <p>
+ * The audio is encoded as configured by the <code>audio-encoding</code> and <code>audio-sample-rate</code>
+ * parameters. The encoding is a setting of the server only: browsers request <code>audio/wav</code>
+ * without telling which WAVE codecs they play, so there is nothing to negotiate on.
+ * </p>
+ * <p>
+ * The audio is rendered once per answer and kept in the {@link RenderMemo} of the application, or in a
+ * small memo of the servlet if the former is disabled. The rendered audio is then served to
+ * <code>HEAD</code> requests, byte ranges and conditional requests (<code>ETag</code>,
+ * <code>If-None-Match</code>, <code>If-Range</code>), as media players issue several of them per playback.
+ * </p>
+ * <p>
+ * If {@link CaptchaTokens} are enabled, the answer is taken from the token in the <code>token</code>
+ * request parameter instead of the session, and a request without a valid token is rejected with
+ * <code>400 Bad Request</code>.
+ * </p>
  *
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
  */
-public class AudioCaptchaServlet extends HttpServlet implements SingleThreadModel {
+public class AudioCaptchaServlet extends HttpServlet {
 
-    private VoiceProducer voiceProducer;
+    /**
+     * Name of the servlet context attribute which is set to {@link Boolean#TRUE} when the servlet is ready.
+     */
+    public static final String READY_ATTRIBUTE = AudioCaptchaServlet.class.getName() + ".ready";
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = Logger.getLogger(AudioCaptchaServlet.class.getName());
+    // The memo of the servlet only has to outlive a playback
+    private static final int LOCAL_MEMO_SIZE = 1024;
+    private static final long LOCAL_MEMO_TTL = 60000;
+
+    private CaptchaConfig config;
+    private RenderMemo memo;
 
     @Override
     public void init() throws ServletException {
-        if (getInitParameter("audio-path") != null) {
-            fillVoiceProducer(getInitParameter("audio-path"));
-        } else {
-            voiceProducer = new NumberVoiceProducer();
+        config = CaptchaConfig.get(getServletConfig());
+        memo = config.getMemo() != null ? config.getMemo() : new RenderMemo(LOCAL_MEMO_SIZE, LOCAL_MEMO_TTL);
+
+        if (getInitParameter("warmup-count") != null) {
+            warmUp(Integer.parseInt(getInitParameter("warmup-count")));
         }
+        getServletContext().setAttribute(READY_ATTRIBUTE, Boolean.TRUE);
     }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        AudioCaptcha.Builder builder = new AudioCaptcha.Builder().addNoise().addVoice(voiceProducer);
-        String answer = (String) req.getSession().getAttribute(CAPTCHA_ATTRIBUTE);
+        // The answer and the key of the memo come either from the token or from the session
+        HttpSession session = null;
+        String key;
+        String answer;
+        if (config.getTokens() != null) {
+            key = req.getParameter(CaptchaTokens.PARAMETER);
+            answer = config.getTokens().getAnswer(key);
+            if (answer == null) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid or expired captcha token.");
+                return;
+            }
+        } else {
+            session = req.getSession();
+            key = session.getId();
+            answer = (String) session.getAttribute(CAPTCHA_ATTRIBUTE);
+        }
+        String kind = getServletName();
+        if (answer != null) {
+            byte[] audio = memo.get(key, kind, answer);
+            if (audio != null) {
+                CaptchaServletUtil.writeAudio(req, resp, audio);
+                return;
+            }
+        }
+
+        AudioCaptcha.Builder builder = createBuilder();
         if (answer != null) {
             builder.addAnswer(new DefaultTextProducer(answer));
         } else {
             builder.addAnswer();
         }
         AudioCaptcha captcha = builder.build();
-        req.getSession().setAttribute(CAPTCHA_ATTRIBUTE, captcha.getAnswer());
-        CaptchaServletUtil.writeAudio(resp, captcha.getChallenge());
+        if (session != null) {
+            session.setAttribute(CAPTCHA_ATTRIBUTE, captcha.getAnswer());
+        }
+        byte[] audio = config.getAudioEncoder().encode(captcha.getChallenge());
+        memo.put(key, kind, captcha.getAnswer(), audio);
+        CaptchaServletUtil.writeAudio(req, resp, audio);
     }
 
     @Override
@@ -55,22 +121,41 @@ public class AudioCaptchaServlet extends HttpServlet implements SingleThreadMode
         doGet(req, resp);
     }
 
+    @Override
+    public void destroy() {
+        getServletContext().removeAttribute(READY_ATTRIBUTE);
+        config.release(getServletContext());
+    }
+
     /**
-     * Fills voice producer by fragments located in specified directory.
-     * This fragments must have a strictly defined names: 0.wav, 1.wav, 2.wav, ..., 9.wav
-     * If even one file does not exists then {@link java.lang.IllegalArgumentException} will be thrown.
-     * @param audioDir directory with audio fragments.
+     * Creates a builder with the configured voices, noise and effects.
      */
-    private void fillVoiceProducer(String audioDir) {
-        Map<Integer, String[]> voiceMap = new HashMap<Integer, String[]>();
-        String fileName;
-        for (int i = 0; i < 10; i++) {
-            fileName = audioDir + "/" + i + ".wav"; // Example: /bla-bla-bla/0.wav
-            if (getClass().getResource(fileName) == null) {
-                throw new IllegalArgumentException("File with next name does not exists: " + fileName);
-            }
-            voiceMap.put(i, new String[]{fileName});
+    private AudioCaptcha.Builder createBuilder() {
+        AudioCaptcha.Builder builder = new AudioCaptcha.Builder()
+                .addNoise(config.getAudioNoiseProducer())
+                .addVoice(config.getVoiceProducer());
+        for (AudioEffect effect : config.getAudioEffects()) {
+            builder.addEffect(effect);
+        }
+        return builder;
+    }
+
+    /**
+     * Preloads the audio files and generates and encodes the given number of captchas,
+     * so that the first requests do not pay for class loading and compilation.
+     * @param count number of captchas.
+     */
+    private void warmUp(int count) {
+        long start = System.nanoTime();
+        if (config.getVoiceProducer() instanceof NumberVoiceProducer) {
+            ((NumberVoiceProducer) config.getVoiceProducer()).preload();
+        }
+        config.getAudioNoiseProducer().preload();
+        for (int i = 0; i < count; i++) {
+            AudioCaptcha captcha = createBuilder().addAnswer().build();
+            config.getAudioEncoder().encode(captcha.getChallenge());
         }
-        voiceProducer = new NumberVoiceProducer(voiceMap);
+        LOG.info("Audio captcha warmed up with " + count + " captchas in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
     }
 }
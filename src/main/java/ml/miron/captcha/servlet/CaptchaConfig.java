@@ -0,0 +1,468 @@
+package ml.miron.captcha.servlet;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import ml.miron.captcha.audio.Sample;
+import ml.miron.captcha.audio.effect.AudioEffect;
+import ml.miron.captcha.audio.effect.BandNoiseEffect;
+import ml.miron.captcha.audio.effect.EchoEffect;
+import ml.miron.captcha.audio.effect.GainJitterEffect;
+import ml.miron.captcha.audio.effect.PauseEffect;
+import ml.miron.captcha.audio.effect.SpeedJitterEffect;
+import ml.miron.captcha.audio.encoder.WavEncoder;
+import ml.miron.captcha.audio.producer.NumberVoiceProducer;
+import ml.miron.captcha.audio.producer.RandomNoiseProducer;
+import ml.miron.captcha.audio.producer.VoiceBank;
+import ml.miron.captcha.audio.producer.VoiceProducer;
+import ml.miron.captcha.image.CanvasPool;
+import ml.miron.captcha.image.background.Background;
+import ml.miron.captcha.image.background.GradiatedBackground;
+import ml.miron.captcha.image.background.TransparentBackground;
+import ml.miron.captcha.image.encoder.PaletteQuantizer;
+import ml.miron.captcha.image.encoder.PngEncoder;
+import ml.miron.captcha.image.producer.CurvedLineNoiseProducer;
+import ml.miron.captcha.image.producer.NoiseProducer;
+import ml.miron.captcha.image.renderer.ColoredEdgesWordRenderer;
+import ml.miron.captcha.image.renderer.FishEyeRenderer;
+import ml.miron.captcha.image.renderer.Renderer;
+import ml.miron.captcha.image.renderer.WordRenderer;
+import ml.miron.captcha.util.FileUtil;
+import ml.miron.captcha.util.RandomSource;
+import ml.miron.captcha.util.TileExecutor;
+
+/**
+ * Immutable configuration of the captcha servlets and filters.
+ * <p>
+ * The configuration is built once per web application from the context-params and kept in the
+ * servlet context attribute {@link #ATTRIBUTE}; all its renderers, producers and the encoder are
+ * thread-safe and shared by all requests. A servlet which sets any of the configuration parameters
+ * as its own init-params gets a configuration of its own, where the init-params override the
+ * context-params.
+ * </p>
+ * <p>
+ * The servlets and the filter get their configuration by {@link #get(ServletConfig)} or
+ * {@link #acquire(ServletContext)} and give it back by {@link #release(ServletContext)} when they are
+ * destroyed. A configuration of a servlet is closed then, the shared one once the last of its users is
+ * gone: its tile threads are stopped and the buffers of its encoder are freed.
+ * </p>
+ * <p>
+ * The {@link RenderMemo}, if enabled by the <code>memo-size</code> context-param, and the
+ * {@link CaptchaTokens}, if enabled by the <code>token-key</code> context-param, belong to the
+ * web application and are shared by all configurations.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class CaptchaConfig {
+
+    /**
+     * Name of the servlet context attribute which holds the shared {@link CaptchaConfig}.
+     */
+    public static final String ATTRIBUTE = CaptchaConfig.class.getName();
+
+    private static final List<String> PARAMETERS = Collections.unmodifiableList(Arrays.asList(
+            "captcha-width", "captcha-height", "noise-curves", "png-compression", "png-filter",
+            "image-mode", "palette-colors", "canvas-pool-size", "audio-path", "voice-bank", "audio-encoding",
+            "audio-sample-rate", "audio-effects", "parallel-threshold"));
+    private static final List<Color> COLORS = Collections.unmodifiableList(
+            Arrays.asList(Color.BLUE, Color.RED, Color.GREEN));
+
+    private final int width;
+    private final int height;
+    private final TileExecutor tiles;
+    private final List<Font> fonts;
+    private final WordRenderer wordRenderer;
+    private final Renderer renderer;
+    private final NoiseProducer noiseProducer;
+    private final Background background;
+    private final PngEncoder encoder;
+    private final CanvasPool canvasPool;
+    private final TransparentBackground transparentBackground;
+    private final VoiceProducer voiceProducer;
+    private final RandomNoiseProducer audioNoiseProducer;
+    private final List<AudioEffect> audioEffects;
+    private final WavEncoder audioEncoder;
+    private final RenderMemo memo;
+    private final CaptchaTokens tokens;
+    private final boolean shared;
+    // Guarded by the servlet context
+    private int references;
+
+    private CaptchaConfig(ServletContext context, ServletConfig servletConfig) {
+        Parameters params = new Parameters(context, servletConfig);
+        shared = servletConfig == null;
+
+        width = params.getInt("captcha-width", 200);
+        height = params.getInt("captcha-height", 50);
+        fonts = Collections.unmodifiableList(Arrays.asList(
+                new Font("Geneva", Font.ITALIC, height),
+                new Font("Courier", Font.BOLD, height),
+                new Font("Arial", Font.BOLD, height)));
+
+        int threshold = params.getInt("parallel-threshold", TileExecutor.DISABLED);
+        tiles = threshold != TileExecutor.DISABLED ? new TileExecutor(threshold) : TileExecutor.getDefault();
+
+        wordRenderer = new ColoredEdgesWordRenderer(COLORS, fonts);
+        renderer = new FishEyeRenderer(Color.BLACK, Color.BLACK, RandomSource.getDefault(), tiles);
+        noiseProducer = new CurvedLineNoiseProducer(Color.BLACK, 3.0f, params.getInt("noise-curves", 1),
+                RandomSource.getDefault());
+        background = new GradiatedBackground(Color.DARK_GRAY, Color.WHITE, tiles);
+
+        PngEncoder.Filter filter = PngEncoder.DEFAULT_FILTER;
+        if (params.get("png-filter") != null) {
+            filter = PngEncoder.Filter.valueOf(params.get("png-filter").toUpperCase(Locale.ENGLISH));
+        }
+        PngEncoder.ColorMode colorMode = PngEncoder.ColorMode.TRUECOLOR;
+        if (params.get("image-mode") != null) {
+            colorMode = PngEncoder.ColorMode.valueOf(params.get("image-mode").toUpperCase(Locale.ENGLISH));
+        }
+        encoder = new PngEncoder(params.getInt("png-compression", PngEncoder.DEFAULT_COMPRESSION), filter, colorMode,
+                params.getInt("palette-colors", PaletteQuantizer.MAX_COLORS), tiles);
+
+        int canvasPoolSize = params.getInt("canvas-pool-size", 0);
+        canvasPool = canvasPoolSize > 0 ? new CanvasPool(canvasPoolSize) : null;
+        transparentBackground = new TransparentBackground(tiles);
+
+        if (params.get("voice-bank") != null) {
+            voiceProducer = new NumberVoiceProducer(loadVoiceBank(params.get("voice-bank")));
+        } else if (params.get("audio-path") != null) {
+            voiceProducer = createVoiceProducer(params.get("audio-path"));
+        } else {
+            voiceProducer = new NumberVoiceProducer();
+        }
+        audioNoiseProducer = new RandomNoiseProducer();
+        List<AudioEffect> effects = new ArrayList<AudioEffect>();
+        if (params.get("audio-effects") != null) {
+            for (String name : params.get("audio-effects").split(",")) {
+                if (name.trim().length() > 0) {
+                    effects.add(createAudioEffect(name.trim().toLowerCase(Locale.ENGLISH)));
+                }
+            }
+        }
+        audioEffects = Collections.unmodifiableList(effects);
+
+        WavEncoder.Encoding encoding = WavEncoder.Encoding.PCM;
+        if (params.get("audio-encoding") != null) {
+            encoding = WavEncoder.Encoding.valueOf(
+                    params.get("audio-encoding").replace('-', '_').toUpperCase(Locale.ENGLISH));
+        }
+        audioEncoder = new WavEncoder(encoding,
+                params.getInt("audio-sample-rate", (int) Sample.SC_AUDIO_FORMAT.getSampleRate()));
+
+        if (servletConfig != null) {
+            memo = get(context).getMemo();
+            tokens = get(context).getTokens();
+        } else {
+            int memoSize = params.getInt("memo-size", 0);
+            memo = memoSize > 0 ? new RenderMemo(memoSize, params.getInt("memo-ttl", 120000)) : null;
+            String tokenKey = params.get("token-key");
+            tokens = tokenKey != null ? new CaptchaTokens(tokenKey, params.getInt("token-ttl", 300000),
+                    params.getInt("token-capacity", CaptchaTokens.DEFAULT_CAPACITY)) : null;
+        }
+    }
+
+    /**
+     * Returns the shared configuration of the web application, building it on first use.
+     * @param context current servlet context.
+     * @return see description.
+     */
+    public static CaptchaConfig get(ServletContext context) {
+        synchronized (context) {
+            CaptchaConfig config = (CaptchaConfig) context.getAttribute(ATTRIBUTE);
+            if (config == null) {
+                config = new CaptchaConfig(context, null);
+                context.setAttribute(ATTRIBUTE, config);
+            }
+            return config;
+        }
+    }
+
+    /**
+     * Returns the shared configuration of the web application like {@link #get(ServletContext)}, and
+     * counts the caller as its user until it calls {@link #release(ServletContext)}.
+     * @param context current servlet context.
+     * @return see description.
+     */
+    public static CaptchaConfig acquire(ServletContext context) {
+        synchronized (context) {
+            CaptchaConfig config = get(context);
+            config.references++;
+            return config;
+        }
+    }
+
+    /**
+     * Returns the configuration of a servlet: the shared one, unless the servlet overrides
+     * some of the parameters by its init-params. The servlet must give it back by
+     * {@link #release(ServletContext)} when it is destroyed.
+     * @param servletConfig configuration of the servlet.
+     * @return see description.
+     */
+    public static CaptchaConfig get(ServletConfig servletConfig) {
+        for (String name : PARAMETERS) {
+            if (servletConfig.getInitParameter(name) != null) {
+                return new CaptchaConfig(servletConfig.getServletContext(), servletConfig);
+            }
+        }
+        return acquire(servletConfig.getServletContext());
+    }
+
+    /**
+     * Gives back the configuration returned by {@link #get(ServletConfig)} or {@link #acquire(ServletContext)}.
+     * A configuration of a servlet is closed, the shared one is closed and removed from the servlet context
+     * when its last user gives it back.
+     * @param context current servlet context.
+     */
+    public void release(ServletContext context) {
+        if (shared) {
+            synchronized (context) {
+                if (--references > 0) {
+                    return;
+                }
+                if (context.getAttribute(ATTRIBUTE) == this) {
+                    context.removeAttribute(ATTRIBUTE);
+                }
+            }
+        }
+        // The tile threads and the pooled deflaters would keep the classes and native memory of the application
+        if (tiles != TileExecutor.getDefault()) {
+            tiles.shutdown();
+        }
+        encoder.close();
+    }
+
+    /**
+     * Returns the width of captcha images.
+     * @return see description.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of captcha images.
+     * @return see description.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the executor which splits large images into tiles, shut down by {@link #release(ServletContext)}.
+     * @return see description.
+     */
+    public TileExecutor getTileExecutor() {
+        return tiles;
+    }
+
+    /**
+     * Returns the unmodifiable list of the text colors.
+     * @return see description.
+     */
+    public List<Color> getColors() {
+        return COLORS;
+    }
+
+    /**
+     * Returns the unmodifiable list of the text fonts.
+     * @return see description.
+     */
+    public List<Font> getFonts() {
+        return fonts;
+    }
+
+    /**
+     * Returns the renderer of the answer.
+     * @return see description.
+     */
+    public WordRenderer getWordRenderer() {
+        return wordRenderer;
+    }
+
+    /**
+     * Returns the renderer which gimps the image.
+     * @return see description.
+     */
+    public Renderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * Returns the noise producer of images.
+     * @return see description.
+     */
+    public NoiseProducer getNoiseProducer() {
+        return noiseProducer;
+    }
+
+    /**
+     * Returns the background of images.
+     * @return see description.
+     */
+    public Background getBackground() {
+        return background;
+    }
+
+    /**
+     * Returns the PNG encoder.
+     * @return see description.
+     */
+    public PngEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * Returns the pool of canvases, or <code>null</code> if images are not rendered into pooled canvases.
+     * @return see description.
+     */
+    public CanvasPool getCanvasPool() {
+        return canvasPool;
+    }
+
+    /**
+     * Returns the transparent background which clears the canvases, painted with the executor of the configuration.
+     * @return see description.
+     */
+    public TransparentBackground getTransparentBackground() {
+        return transparentBackground;
+    }
+
+    /**
+     * Returns the voice producer of audio captchas.
+     * @return see description.
+     */
+    public VoiceProducer getVoiceProducer() {
+        return voiceProducer;
+    }
+
+    /**
+     * Returns the noise producer of audio captchas.
+     * @return see description.
+     */
+    public RandomNoiseProducer getAudioNoiseProducer() {
+        return audioNoiseProducer;
+    }
+
+    /**
+     * Returns the unmodifiable list of the effects applied to the voices of audio captchas, in order.
+     * @return see description.
+     */
+    public List<AudioEffect> getAudioEffects() {
+        return audioEffects;
+    }
+
+    /**
+     * Returns the configured encoder of audio captchas.
+     * @return see description.
+     */
+    public WavEncoder getAudioEncoder() {
+        return audioEncoder;
+    }
+
+    /**
+     * Returns the memo of rendered challenges, or <code>null</code> if the challenges are rendered on every request.
+     * @return see description.
+     */
+    public RenderMemo getMemo() {
+        return memo;
+    }
+
+    /**
+     * Returns the issuer of the captcha tokens, or <code>null</code> if the answers are kept in the sessions.
+     * @return see description.
+     */
+    public CaptchaTokens getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Creates voice producer from fragments located in specified directory.
+     * This fragments must have a strictly defined names: 0.wav, 1.wav, 2.wav, ..., 9.wav
+     * If even one file does not exists then {@link java.lang.IllegalArgumentException} will be thrown.
+     * @param audioDir directory with audio fragments.
+     */
+    private static VoiceProducer createVoiceProducer(String audioDir) {
+        Map<Integer, String[]> voiceMap = new HashMap<Integer, String[]>();
+        String fileName;
+        for (int i = 0; i < 10; i++) {
+            fileName = audioDir + "/" + i + ".wav"; // Example: /bla-bla-bla/0.wav
+            if (CaptchaConfig.class.getResource(fileName) == null) {
+                throw new IllegalArgumentException("File with next name does not exists: " + fileName);
+            }
+            voiceMap.put(i, new String[]{fileName});
+        }
+        return new NumberVoiceProducer(voiceMap);
+    }
+
+    /**
+     * Creates the audio effect with the given name and default settings.
+     * @param name one of speed, pause, gain, echo and noise.
+     */
+    private static AudioEffect createAudioEffect(String name) {
+        if (name.equals("speed")) {
+            return new SpeedJitterEffect();
+        } else if (name.equals("pause")) {
+            return new PauseEffect();
+        } else if (name.equals("gain")) {
+            return new GainJitterEffect();
+        } else if (name.equals("echo")) {
+            return new EchoEffect();
+        } else if (name.equals("noise")) {
+            return new BandNoiseEffect();
+        }
+        throw new IllegalArgumentException("Unknown audio effect: " + name);
+    }
+
+    /**
+     * Maps the voice bank file into memory, or reads it from the classpath if there is no such file.
+     * @param path path of the file or name of the resource.
+     */
+    private static VoiceBank loadVoiceBank(String path) {
+        try {
+            File file = new File(path);
+            if (file.isFile()) {
+                return VoiceBank.open(file);
+            }
+            return VoiceBank.read(FileUtil.readResource(path));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not load voice bank " + path, e);
+        }
+    }
+
+    /**
+     * Init-params of a servlet falling back to the context-params.
+     */
+    private static final class Parameters {
+
+        private final ServletContext context;
+        private final ServletConfig servletConfig;
+
+        Parameters(ServletContext context, ServletConfig servletConfig) {
+            this.context = context;
+            this.servletConfig = servletConfig;
+        }
+
+        String get(String name) {
+            String value = servletConfig != null ? servletConfig.getInitParameter(name) : null;
+            return value != null ? value : context.getInitParameter(name);
+        }
+
+        int getInt(String name, int defaultValue) {
+            String value = get(name);
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        }
+    }
+}
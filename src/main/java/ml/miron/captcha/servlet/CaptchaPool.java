@@ -0,0 +1,281 @@
+package ml.miron.captcha.servlet;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of pre-rendered captchas, kept filled by background worker threads.
+ * <p>
+ * The number of ready captchas the workers aim for follows the observed request rate:
+ * it is the amount of captchas requested during the last <code>refillWindow</code>
+ * milliseconds, but never less than <code>minDepth</code> and never more than
+ * <code>capacity</code>. When the pool runs dry {@link #poll()} returns <code>null</code>
+ * and the caller is expected to render the captcha inline.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class CaptchaPool {
+
+    private static final Logger LOG = Logger.getLogger(CaptchaPool.class.getName());
+    private static final long DEFAULT_REFILL_WINDOW = 1000;
+    // Weight of the latest inter-arrival interval in the moving average
+    private static final double RATE_WEIGHT = 0.2;
+    // Pause of a worker after a failure, doubled by every further failure in a row
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 10000;
+    // Time close() waits for the workers to finish the captchas they are rendering
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    private final BlockingQueue<Entry> queue;
+    private final Factory factory;
+    private final int capacity;
+    private final int minDepth;
+    private final long refillWindow;
+    private final Thread[] workers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition demand = lock.newCondition();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile boolean closed;
+    // Guarded by lock
+    private long lastArrival = System.nanoTime();
+    private double avgInterval = Double.NaN;
+
+    /**
+     * Creates and starts a {@link CaptchaPool} which keeps at least one captcha ready
+     * and sizes itself by the requests of the last second.
+     * @param factory produces new captchas.
+     * @param capacity maximum number of ready captchas.
+     * @param threads number of worker threads.
+     */
+    public CaptchaPool(Factory factory, int capacity, int threads) {
+        this(factory, capacity, threads, 1, DEFAULT_REFILL_WINDOW);
+    }
+
+    /**
+     * Creates and starts a {@link CaptchaPool}.
+     * @param factory produces new captchas.
+     * @param capacity maximum number of ready captchas.
+     * @param threads number of worker threads.
+     * @param minDepth number of captchas kept ready even when there is no traffic.
+     * @param refillWindow time in milliseconds which the ready captchas should cover
+     *                     at the current request rate.
+     */
+    public CaptchaPool(Factory factory, int capacity, int threads, int minDepth, long refillWindow) {
+        if (capacity < 1 || threads < 1) {
+            throw new IllegalArgumentException("Capacity and number of threads must be positive.");
+        }
+        this.factory = factory;
+        this.capacity = capacity;
+        this.minDepth = Math.max(0, Math.min(minDepth, capacity));
+        this.refillWindow = refillWindow;
+        this.queue = new LinkedBlockingQueue<Entry>(capacity);
+
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Worker(), "captcha-pool-" + i);
+            workers[i].setDaemon(true);
+            workers[i].setPriority(Thread.NORM_PRIORITY - 1);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Takes a ready captcha out of the pool.
+     * @return ready captcha or <code>null</code> if the pool is empty.
+     */
+    public Entry poll() {
+        Entry entry = queue.poll();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            double interval = now - lastArrival;
+            lastArrival = now;
+            avgInterval = Double.isNaN(avgInterval)
+                    ? interval : avgInterval + RATE_WEIGHT * (interval - avgInterval);
+            demand.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the number of captchas which are ready right now.
+     * @return see description.
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of ready captchas the workers currently aim for.
+     * @return see description.
+     */
+    public int getTargetDepth() {
+        lock.lock();
+        try {
+            return targetDepth();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the maximum number of ready captchas.
+     * @return see description.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of requests served from the pool.
+     * @return see description.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests which found the pool empty.
+     * @return see description.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Stops the worker threads, waits a second at most for them to finish and drops all ready captchas.
+     */
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT);
+        try {
+            for (Thread worker : workers) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    break;
+                }
+                worker.join(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+    }
+
+    private int targetDepth() {
+        if (Double.isNaN(avgInterval)) {
+            return minDepth;
+        }
+        // Without traffic the rate decays, since the current gap counts as a long interval
+        double interval = Math.max(avgInterval, System.nanoTime() - lastArrival);
+        double expected = Math.ceil(TimeUnit.MILLISECONDS.toNanos(refillWindow) / Math.max(interval, 1));
+        return (int) Math.max(minDepth, Math.min(capacity, expected));
+    }
+
+    private void awaitDemand() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && queue.size() >= targetDepth()) {
+                // Wake up now and then, so the target follows a decaying rate
+                demand.await(refillWindow, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            long backoff = 0;
+            while (!closed) {
+                try {
+                    awaitDemand();
+                    if (closed) {
+                        return;
+                    }
+                    queue.offer(factory.create());
+                    backoff = 0;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    // A factory which keeps failing must not keep a processor busy
+                    backoff = Math.min(Math.max(MIN_BACKOFF, 2 * backoff), MAX_BACKOFF);
+                    LOG.log(Level.SEVERE, "Could not pre-render captcha, retrying in " + backoff + " ms: ", e);
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Produces captchas for a {@link CaptchaPool}. Called concurrently by the worker threads.
+     */
+    public interface Factory {
+
+        /**
+         * Renders and encodes a new captcha.
+         * @return see description.
+         */
+        public Entry create();
+    }
+
+    /**
+     * A pre-rendered captcha: the answer and the encoded image.
+     */
+    public static final class Entry {
+
+        private final String answer;
+        private final byte[] image;
+
+        /**
+         * Creates a {@link Entry} with specified answer and encoded image.
+         * @param answer answer for captcha.
+         * @param image encoded image.
+         */
+        public Entry(String answer, byte[] image) {
+            this.answer = answer;
+            this.image = image;
+        }
+
+        /**
+         * Returns the answer for captcha.
+         * @return see description.
+         */
+        public String getAnswer() {
+            return answer;
+        }
+
+        /**
+         * Returns the encoded image.
+         * @return see description.
+         */
+        public byte[] getImage() {
+            return image;
+        }
+    }
+}
@@ -1,68 +1,212 @@
 package ml.miron.captcha.servlet;
 
-import java.awt.Color;
-import java.awt.Font;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
-import javax.servlet.SingleThreadModel;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
+import ml.miron.captcha.image.CanvasPool;
 import ml.miron.captcha.image.producer.NumbersAnswerProducer;
-import ml.miron.captcha.image.renderer.ColoredEdgesWordRenderer;
+import ml.miron.captcha.image.producer.TextProducer;
 import ml.miron.captcha.util.CaptchaServletUtil;
 import ml.miron.captcha.image.Captcha;
-import ml.miron.captcha.image.background.GradiatedBackground;
 import ml.miron.captcha.image.producer.DefaultTextProducer;
 
 
 /**
  * Generates a new {@link Captcha} and writes the image to the response.
+ * <p>
+ * The servlet serves requests concurrently: the renderers and the encoder come from the
+ * {@link CaptchaConfig} of the web application, which is immutable and shared by all requests.
+ * </p>
+ * <p>
+ * If the <code>warmup-count</code> init-param is set, {@link #init()} renders and encodes that many
+ * captchas before the servlet is put into service, so that fonts, caches and compiled code are ready
+ * for the first requests. The servlet context attribute {@link #READY_ATTRIBUTE} is set once the
+ * servlet is initialized.
+ * </p>
+ * <p>
+ * If the {@link RenderMemo} is enabled, the image of an unchanged answer is served from the memo.
+ * </p>
+ * <p>
+ * If {@link CaptchaTokens} are enabled, the answer is taken from the token in the <code>token</code>
+ * request parameter instead of the session, and a request without a valid token is rejected with
+ * <code>400 Bad Request</code>. As the answer of a token never changes, its image is then kept in a small
+ * memo of the servlet if the {@link RenderMemo} of the application is disabled, so that reloads are not
+ * rendered again.
+ * </p>
  *
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
  */
-public class CaptchaServlet extends HttpServlet implements SingleThreadModel {
+public class CaptchaServlet extends HttpServlet {
 
-    private static final List<Color> COLORS = new ArrayList<Color>();
-    private static final List<Font> FONTS = new ArrayList<Font>();
-    private int width = 200;
-    private int height = 50;
+    /**
+     * Name of the servlet context attribute which holds the {@link CaptchaPool}, if the pool is enabled.
+     */
+    public static final String POOL_ATTRIBUTE = CaptchaPool.class.getName();
+
+    /**
+     * Name of the servlet context attribute which is set to {@link Boolean#TRUE} when the servlet is ready.
+     */
+    public static final String READY_ATTRIBUTE = CaptchaServlet.class.getName() + ".ready";
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = Logger.getLogger(CaptchaServlet.class.getName());
+    // The memo of the servlet only has to outlive the reloads of a page
+    private static final int LOCAL_MEMO_SIZE = 1024;
+    private static final long LOCAL_MEMO_TTL = 60000;
+
+    private CaptchaConfig config;
+    private CaptchaPool pool;
+    private RenderMemo memo;
 
     @Override
     public void init() throws ServletException {
-        if (getInitParameter("captcha-height") != null) {
-            height = Integer.parseInt(getInitParameter("captcha-height"));
+        config = CaptchaConfig.get(getServletConfig());
+        memo = config.getMemo();
+        if (memo == null && config.getTokens() != null) {
+            memo = new RenderMemo(LOCAL_MEMO_SIZE, LOCAL_MEMO_TTL);
         }
 
-        if (getInitParameter("captcha-width") != null) {
-            width = Integer.parseInt(getInitParameter("captcha-width"));
+        if (getInitParameter("pool-size") != null) {
+            int poolSize = Integer.parseInt(getInitParameter("pool-size"));
+            int poolThreads = 1;
+            if (getInitParameter("pool-threads") != null) {
+                poolThreads = Integer.parseInt(getInitParameter("pool-threads"));
+            }
+            // The answer of a token is given, so a token never takes a pooled challenge
+            if (poolSize > 0 && config.getTokens() == null) {
+                pool = new CaptchaPool(new CaptchaPool.Factory() {
+                    @Override
+                    public CaptchaPool.Entry create() {
+                        Captcha captcha = createCaptcha(new NumbersAnswerProducer());
+                        try {
+                            return new CaptchaPool.Entry(captcha.getAnswer(), config.getEncoder().encode(captcha.getImage()));
+                        } finally {
+                            captcha.release();
+                        }
+                    }
+                }, poolSize, poolThreads);
+                getServletContext().setAttribute(POOL_ATTRIBUTE, pool);
+            }
         }
 
-        COLORS.add(Color.BLUE);
-        COLORS.add(Color.RED);
-        COLORS.add(Color.GREEN);
-
-        FONTS.add(new Font("Geneva", Font.ITALIC, height));
-        FONTS.add(new Font("Courier", Font.BOLD, height));
-        FONTS.add(new Font("Arial", Font.BOLD, height));
+        if (getInitParameter("warmup-count") != null) {
+            warmUp(Integer.parseInt(getInitParameter("warmup-count")));
+        }
+        getServletContext().setAttribute(READY_ATTRIBUTE, Boolean.TRUE);
     }
 
     @Override
     public void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        ColoredEdgesWordRenderer wordRenderer = new ColoredEdgesWordRenderer(COLORS, FONTS);
-        Captcha.Builder builder = new Captcha.Builder(width, height).gimp().addNoise().addBackground(new GradiatedBackground());
-        String answer = (String) req.getSession().getAttribute(CaptchaServletUtil.CAPTCHA_ATTRIBUTE);
+        // The answer and the key of the memo come either from the token or from the session
+        HttpSession session = null;
+        String key;
+        String answer;
+        if (config.getTokens() != null) {
+            key = req.getParameter(CaptchaTokens.PARAMETER);
+            answer = config.getTokens().getAnswer(key);
+            if (answer == null) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid or expired captcha token.");
+                return;
+            }
+        } else {
+            session = req.getSession();
+            key = session.getId();
+            answer = (String) session.getAttribute(CaptchaServletUtil.CAPTCHA_ATTRIBUTE);
+        }
+        if (answer != null && memo != null) {
+            byte[] image = memo.get(key, getServletName(), answer);
+            if (image != null) {
+                CaptchaServletUtil.writeImage(resp, image);
+                return;
+            }
+        }
+
+        // A new challenge can be taken from the pool, while the existing one must be rendered again
+        CaptchaPool.Entry entry = answer == null && pool != null ? pool.poll() : null;
+        if (entry != null) {
+            session.setAttribute(CaptchaServletUtil.CAPTCHA_ATTRIBUTE, entry.getAnswer());
+            remember(key, entry.getAnswer(), entry.getImage());
+            CaptchaServletUtil.writeImage(resp, entry.getImage());
+            return;
+        }
+
+        Captcha captcha;
         if (answer != null) {
-            builder.addText(new DefaultTextProducer(answer), wordRenderer);
+            captcha = createCaptcha(new DefaultTextProducer(answer));
         } else {
-            builder.addText(new NumbersAnswerProducer(), wordRenderer);
+            captcha = createCaptcha(new NumbersAnswerProducer());
+        }
+        if (session != null) {
+            session.setAttribute(CaptchaServletUtil.CAPTCHA_ATTRIBUTE, captcha.getAnswer());
+        }
+        byte[] image;
+        try {
+            image = config.getEncoder().encode(captcha.getImage());
+        } finally {
+            captcha.release();
         }
-        Captcha captcha = builder.build();
-        req.getSession().setAttribute(CaptchaServletUtil.CAPTCHA_ATTRIBUTE, captcha.getAnswer());
-        CaptchaServletUtil.writeImage(resp, captcha.getImage());
+        remember(key, captcha.getAnswer(), image);
+        CaptchaServletUtil.writeImage(resp, image);
+    }
+
+    private void remember(String key, String answer, byte[] image) {
+        if (memo != null) {
+            memo.put(key, getServletName(), answer, image);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        getServletContext().removeAttribute(READY_ATTRIBUTE);
+        if (pool != null) {
+            getServletContext().removeAttribute(POOL_ATTRIBUTE);
+            pool.close();
+            pool = null;
+        }
+        config.release(getServletContext());
+    }
+
+    /**
+     * Renders and encodes the given number of captchas, so that the first requests
+     * do not pay for font lookup, cache population and compilation.
+     * @param count number of captchas.
+     */
+    private void warmUp(int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Captcha captcha = createCaptcha(new NumbersAnswerProducer());
+            try {
+                config.getEncoder().encode(captcha.getImage());
+            } finally {
+                captcha.release();
+            }
+        }
+        LOG.info("Captcha warmed up with " + count + " captchas in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Creates a new captcha with the answer of the given {@link TextProducer}.
+     * If the canvas pool is enabled the caller must {@link Captcha#release()} it.
+     * @param txtProd the instance of {@link TextProducer}.
+     * @return see description.
+     */
+    protected Captcha createCaptcha(TextProducer txtProd) {
+        CanvasPool canvasPool = config.getCanvasPool();
+        Captcha.Builder builder = canvasPool != null
+                ? new Captcha.Builder(config.getWidth(), config.getHeight(), canvasPool)
+                : new Captcha.Builder(config.getWidth(), config.getHeight());
+        return builder
+                .withTiles(config.getTileExecutor(), config.getTransparentBackground())
+                .gimp(config.getRenderer())
+                .addNoise(config.getNoiseProducer())
+                .addBackground(config.getBackground())
+                .addText(txtProd, config.getWordRenderer())
+                .build();
     }
 }
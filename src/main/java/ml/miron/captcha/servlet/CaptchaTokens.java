@@ -0,0 +1,269 @@
+package ml.miron.captcha.servlet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import ml.miron.captcha.util.RandomSource;
+
+/**
+ * Issues and verifies signed, expiring captcha tokens, which replace the answer kept in the session.
+ * <p>
+ * A token holds a random id and its expiry time, signed with HMAC-SHA256 by a key known only to the server,
+ * and is written in hex, so it can be put into URLs and forms as it is. The answer of a token is not stored
+ * anywhere: it is derived from the id and the expiry by the same key, so every node which shares the key
+ * renders the same challenge for the token and checks the answer without any shared state, while the
+ * client cannot derive the answer from the token.
+ * </p>
+ * <p>
+ * Because the servlets have to render the answer of a token without storing it, the token does not carry
+ * a hash of an answer made by a {@link ml.miron.captcha.image.producer.TextProducer}: the answer is made
+ * from the token itself. It is always six digits, like the answers of
+ * {@link ml.miron.captcha.image.producer.NumbersAnswerProducer} which the servlets use without tokens, so a
+ * servlet which overrides <code>createCaptcha</code> with another text producer does not change the
+ * answers of the tokens.
+ * </p>
+ * <p>
+ * A token can be checked by {@link #isCorrect(String, String)} only once, whether the answer is right or
+ * wrong, so a solved token cannot be replayed and the answer of a token cannot be guessed by trying. The
+ * checked tokens are remembered until they expire, at most <code>capacity</code> of them: beyond that the
+ * earliest checked ones are forgotten, so the capacity should exceed the number of checks during the time
+ * to live.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class CaptchaTokens {
+
+    /**
+     * Name of the request parameter which carries the token to the servlets.
+     */
+    public static final String PARAMETER = "token";
+
+    /**
+     * Default maximum number of checked tokens remembered.
+     */
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MIN_KEY_LENGTH = 16;
+    private static final int ID_LENGTH = 12;
+    private static final int PAYLOAD_LENGTH = ID_LENGTH + 8;
+    private static final int MAC_LENGTH = 16;
+    // The length of the answers of NumbersAnswerProducer
+    private static final int ANSWER_LENGTH = 6;
+    private static final long ANSWER_MODULUS = 1000000;
+    // Keep the signature and the answer apart, although both are derived from the same key
+    private static final byte SIGNATURE = 'S';
+    private static final byte ANSWER = 'A';
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long ttl;
+    private final ThreadLocal<Mac> mac;
+    // Ids of the checked tokens and their expiry, in the order of checking. Guarded by itself
+    private final Map<String, Long> checked;
+
+    /**
+     * Creates a {@link CaptchaTokens} with the given key and time to live of the tokens.
+     * @param key secret key of at least 16 bytes, the same on every node.
+     * @param ttl time to live of the tokens in milliseconds.
+     */
+    public CaptchaTokens(byte[] key, long ttl) {
+        this(key, ttl, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a {@link CaptchaTokens} with the given key, time to live of the tokens and maximum number
+     * of checked tokens remembered.
+     * @param key secret key of at least 16 bytes, the same on every node.
+     * @param ttl time to live of the tokens in milliseconds.
+     * @param capacity maximum number of checked tokens remembered.
+     */
+    public CaptchaTokens(byte[] key, long ttl, final int capacity) {
+        if (key.length < MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("The key must be at least " + MIN_KEY_LENGTH + " bytes long.");
+        }
+        if (ttl < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Time to live and capacity must be positive.");
+        }
+        this.ttl = ttl;
+        this.checked = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+        final SecretKeySpec keySpec = new SecretKeySpec(key.clone(), ALGORITHM);
+        this.mac = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac m = Mac.getInstance(ALGORITHM);
+                    m.init(keySpec);
+                    return m;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Could not initialize " + ALGORITHM, e);
+                }
+            }
+        };
+        // Fail at startup rather than on the first request
+        mac.get();
+    }
+
+    /**
+     * Creates a {@link CaptchaTokens} with the given key and time to live of the tokens.
+     * @param key secret key of at least 16 characters, the same on every node.
+     * @param ttl time to live of the tokens in milliseconds.
+     */
+    public CaptchaTokens(String key, long ttl) {
+        this(key.getBytes(UTF_8), ttl);
+    }
+
+    /**
+     * Creates a {@link CaptchaTokens} with the given key, time to live of the tokens and maximum number
+     * of checked tokens remembered.
+     * @param key secret key of at least 16 characters, the same on every node.
+     * @param ttl time to live of the tokens in milliseconds.
+     * @param capacity maximum number of checked tokens remembered.
+     */
+    public CaptchaTokens(String key, long ttl, int capacity) {
+        this(key.getBytes(UTF_8), ttl, capacity);
+    }
+
+    /**
+     * Issues a new token, which expires after the time to live.
+     * @return see description.
+     */
+    public String issue() {
+        ByteBuffer token = ByteBuffer.allocate(PAYLOAD_LENGTH + MAC_LENGTH);
+        byte[] id = new byte[ID_LENGTH];
+        RandomSource.getDefault().secure().nextBytes(id);
+        token.put(id).putLong(System.currentTimeMillis() + ttl);
+        token.put(digest(SIGNATURE, token.array()), 0, MAC_LENGTH);
+        return toHex(token.array(), token.capacity());
+    }
+
+    /**
+     * Returns the answer of the token, if the token is signed by the key and has not expired.
+     * @param token token, may be <code>null</code>.
+     * @return answer or <code>null</code> if the token is not valid.
+     */
+    public String getAnswer(String token) {
+        byte[] bytes = verify(token);
+        return bytes != null ? getAnswer(bytes) : null;
+    }
+
+    /**
+     * Returns true if the token is valid, has not been checked before and the answer is its answer,
+     * otherwise false. The token cannot be checked again afterwards.
+     * @param token token, may be <code>null</code>.
+     * @param answer answer given by the user, may be <code>null</code>.
+     * @return see description.
+     */
+    public boolean isCorrect(String token, String answer) {
+        byte[] bytes = verify(token);
+        if (bytes == null || !check(bytes)) {
+            return false;
+        }
+        return answer != null
+                && MessageDigest.isEqual(getAnswer(bytes).getBytes(UTF_8), answer.trim().getBytes(UTF_8));
+    }
+
+    /**
+     * Returns the time to live of the tokens in milliseconds.
+     * @return see description.
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Decodes the token, if it is signed by the key and has not expired.
+     * @return bytes of the token or <code>null</code>.
+     */
+    private byte[] verify(String token) {
+        byte[] bytes = token != null && token.length() == 2 * (PAYLOAD_LENGTH + MAC_LENGTH) ? fromHex(token) : null;
+        if (bytes == null) {
+            return null;
+        }
+        byte[] signature = new byte[MAC_LENGTH];
+        System.arraycopy(digest(SIGNATURE, bytes), 0, signature, 0, MAC_LENGTH);
+        byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(bytes, PAYLOAD_LENGTH, actual, 0, MAC_LENGTH);
+        // Compares in constant time
+        if (!MessageDigest.isEqual(signature, actual)
+                || ByteBuffer.wrap(bytes).getLong(ID_LENGTH) < System.currentTimeMillis()) {
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * Remembers the token as checked until it expires.
+     * @return false if the token has already been checked.
+     */
+    private boolean check(byte[] token) {
+        // The same token can be written in upper and lower case, its id is the same
+        String id = toHex(token, ID_LENGTH);
+        long now = System.currentTimeMillis();
+        synchronized (checked) {
+            for (Iterator<Long> expiry = checked.values().iterator(); expiry.hasNext() && expiry.next() < now; ) {
+                expiry.remove();
+            }
+            return checked.put(id, ByteBuffer.wrap(token).getLong(ID_LENGTH)) == null;
+        }
+    }
+
+    private String getAnswer(byte[] bytes) {
+        long value = (ByteBuffer.wrap(digest(ANSWER, bytes)).getLong() & Long.MAX_VALUE) % ANSWER_MODULUS;
+        String digits = Long.toString(value);
+        StringBuilder answer = new StringBuilder(ANSWER_LENGTH);
+        for (int i = digits.length(); i < ANSWER_LENGTH; i++) {
+            answer.append('0');
+        }
+        return answer.append(digits).toString();
+    }
+
+    /**
+     * Computes the HMAC of the payload of the token for the given purpose.
+     */
+    private byte[] digest(byte purpose, byte[] token) {
+        Mac m = mac.get();
+        m.update(purpose);
+        m.update(token, 0, PAYLOAD_LENGTH);
+        return m.doFinal();
+    }
+
+    private static String toHex(byte[] bytes, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Decodes the hex string of even length, or returns <code>null</code> if it is not one.
+     */
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
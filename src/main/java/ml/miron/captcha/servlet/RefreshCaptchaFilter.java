@@ -2,34 +2,53 @@ package ml.miron.captcha.servlet;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
 
 import static ml.miron.captcha.util.CaptchaServletUtil.CAPTCHA_ATTRIBUTE;
+import static ml.miron.captcha.util.CaptchaServletUtil.TOKEN_ATTRIBUTE;
 
 /**
  * Removes the captcha attribute from session, thereby resets captcha.
+ * The challenges of the session kept by the {@link RenderMemo} are dropped as well.
+ * <p>
+ * If the answers are kept in {@link CaptchaTokens}, no session is used: the filter issues a new token
+ * into the request attribute {@link ml.miron.captcha.util.CaptchaServletUtil#TOKEN_ATTRIBUTE} instead,
+ * which the page passes to the servlets and submits with the answer.
+ * </p>
  *
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
  */
 public class RefreshCaptchaFilter implements Filter {
 
+    private CaptchaConfig config;
+    private ServletContext servletContext;
+
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
-        // Do nothing
+        // Build the shared configuration before the first request
+        config = CaptchaConfig.acquire(filterConfig.getServletContext());
+        servletContext = filterConfig.getServletContext();
     }
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         HttpServletRequest httpRequest = (HttpServletRequest)request;
-        // We should do this only in case redirect via browser
-        if (httpRequest.getMethod().equals("GET")) {
-            httpRequest.getSession().removeAttribute(CAPTCHA_ATTRIBUTE);
+        if (config.getTokens() != null) {
+            request.setAttribute(TOKEN_ATTRIBUTE, config.getTokens().issue());
+        } else if (httpRequest.getMethod().equals("GET")) {
+            // We should do this only in case redirect via browser
+            HttpSession session = httpRequest.getSession();
+            session.removeAttribute(CAPTCHA_ATTRIBUTE);
+            if (config.getMemo() != null) {
+                config.getMemo().invalidate(session.getId());
+            }
         }
         chain.doFilter(request, response);
     }
 
     @Override
     public void destroy() {
-        // Do nothing
+        config.release(servletContext);
     }
 }
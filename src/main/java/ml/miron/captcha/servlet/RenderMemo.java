@@ -0,0 +1,109 @@
+package ml.miron.captcha.servlet;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, expiring memo of the encoded challenges of the active captchas.
+ * <p>
+ * While the answer of a session stays the same, reloading the image or replaying the audio serves
+ * the bytes rendered the first time, so neither the CPU is spent again nor a new rendering of the
+ * same answer is given away. The entries are kept per session and per kind of challenge, e.g. the
+ * name of the servlet, and are only served for the answer they were rendered for. The least recently
+ * used sessions are dropped beyond the capacity, every entry expires after the time to live, and
+ * {@link RefreshCaptchaFilter} drops the entries of a session when it resets the captcha.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class RenderMemo {
+
+    private final long ttl;
+    // Guarded by this
+    private final Map<String, Map<String, Challenge>> sessions;
+
+    /**
+     * Creates a {@link RenderMemo}.
+     * @param capacity maximum number of sessions.
+     * @param ttl time to live of the entries in milliseconds.
+     */
+    public RenderMemo(final int capacity, long ttl) {
+        if (capacity < 1 || ttl < 1) {
+            throw new IllegalArgumentException("Capacity and time to live must be positive.");
+        }
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.sessions = new LinkedHashMap<String, Map<String, Challenge>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Challenge>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the challenge rendered for the session, if it is alive and was rendered for the given answer.
+     * @param sessionId id of the session.
+     * @param kind kind of the challenge.
+     * @param answer current answer of the session.
+     * @return encoded challenge or <code>null</code>.
+     */
+    public synchronized byte[] get(String sessionId, String kind, String answer) {
+        Map<String, Challenge> entries = sessions.get(sessionId);
+        Challenge entry = entries != null ? entries.get(kind) : null;
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.created > ttl || !entry.answer.equals(answer)) {
+            entries.remove(kind);
+            return null;
+        }
+        return entry.challenge;
+    }
+
+    /**
+     * Remembers the challenge rendered for the session.
+     * @param sessionId id of the session.
+     * @param kind kind of the challenge.
+     * @param answer answer of the challenge.
+     * @param challenge encoded challenge, which must not be modified afterwards.
+     */
+    public synchronized void put(String sessionId, String kind, String answer, byte[] challenge) {
+        Map<String, Challenge> entries = sessions.get(sessionId);
+        if (entries == null) {
+            entries = new HashMap<String, Challenge>();
+            sessions.put(sessionId, entries);
+        }
+        entries.put(kind, new Challenge(answer, challenge, System.nanoTime()));
+    }
+
+    /**
+     * Drops all challenges of the session.
+     * @param sessionId id of the session.
+     */
+    public synchronized void invalidate(String sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    /**
+     * Returns the number of sessions with remembered challenges, including the expired ones.
+     * @return see description.
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    private static final class Challenge {
+
+        private final String answer;
+        private final byte[] challenge;
+        private final long created;
+
+        Challenge(String answer, byte[] challenge, long created) {
+            this.answer = answer;
+            this.challenge = challenge;
+            this.created = created;
+        }
+    }
+}
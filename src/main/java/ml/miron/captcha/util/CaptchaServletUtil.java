@@ -1,18 +1,18 @@
 package ml.miron.captcha.util;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
-import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioSystem;
 
 import ml.miron.captcha.audio.Sample;
+import ml.miron.captcha.audio.encoder.WavEncoder;
+import ml.miron.captcha.image.encoder.PngEncoder;
 
 /**
  * Helper class for operating with {@link javax.servlet.http.HttpServletResponse} and image/audio resources.
@@ -23,10 +23,16 @@ import ml.miron.captcha.audio.Sample;
 public final class CaptchaServletUtil {
 
     private static final Logger LOG = Logger.getLogger(CaptchaServletUtil.class.getName());
-    private static final int AUDIO_STREAM_SIZE = 1024;
+    private static final PngEncoder PNG_ENCODER = new PngEncoder();
+    private static final WavEncoder WAV_ENCODER = new WavEncoder();
 
     public static final String CAPTCHA_ATTRIBUTE = "CAPTCHA";
 
+    /**
+     * Name of the request attribute which holds the new captcha token, if the answers are kept in tokens.
+     */
+    public static final String TOKEN_ATTRIBUTE = "CAPTCHA_TOKEN";
+
     private CaptchaServletUtil() {
     }
 
@@ -36,12 +42,22 @@ public final class CaptchaServletUtil {
      * @param image determined image.
      */
     public static void writeImage(HttpServletResponse response, BufferedImage image) {
-        response.setHeader("Cache-Control", "private,no-cache,no-store");
         // PNGs allow for transparency. JPGs does not.
+        writeImage(response, encodeImage(image));
+    }
+
+    /**
+     * Writes already encoded PNG image to the response.
+     * @param response current response.
+     * @param image encoded image.
+     */
+    public static void writeImage(HttpServletResponse response, byte[] image) {
+        response.setHeader("Cache-Control", "private,no-cache,no-store");
         response.setContentType("image/png");
+        response.setContentLength(image.length);
         try {
             OutputStream os = response.getOutputStream();
-            ImageIO.write(image, "png", os);
+            os.write(image);
             os.close();
         } catch (IOException e) {
             LOG.log(Level.SEVERE, "Could not write image to response: ", e);
@@ -49,25 +65,165 @@ public final class CaptchaServletUtil {
     }
 
     /**
-     * Writes audio to the response.
+     * Encodes image to PNG with the default {@link PngEncoder}.
+     * @param image determined image.
+     * @return encoded image.
+     */
+    public static byte[] encodeImage(BufferedImage image) {
+        return PNG_ENCODER.encode(image);
+    }
+
+    /**
+     * Writes audio to the response, encoding it while it is written. The servlets do not use it: they encode
+     * the audio to bytes, which are kept in the {@link ml.miron.captcha.servlet.RenderMemo} and served to
+     * the repeated and ranged requests of a playback by
+     * {@link #writeAudio(HttpServletRequest, HttpServletResponse, byte[])}.
      * @param response current response.
      * @param sample determined audio.
      */
     public static void writeAudio(HttpServletResponse response, Sample sample) {
         response.setHeader("Cache-Control", "private,no-cache,no-store");
         response.setContentType("audio/wav");
+        response.setContentLength(WAV_ENCODER.getLength(sample));
 
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(AUDIO_STREAM_SIZE);
-            AudioSystem.write(sample.getAudioInputStream(), AudioFileFormat.Type.WAVE, baos);
-            response.setContentLength(baos.size());
+            OutputStream os = response.getOutputStream();
+            WAV_ENCODER.write(sample, os);
+            os.flush();
+            os.close();
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Could not write audio to response: ", e);
+        }
+    }
+
+    /**
+     * Writes already encoded WAV audio to the response.
+     * @param response current response.
+     * @param audio encoded audio.
+     */
+    public static void writeAudio(HttpServletResponse response, byte[] audio) {
+        response.setHeader("Cache-Control", "private,no-cache,no-store");
+        response.setContentType("audio/wav");
+        response.setContentLength(audio.length);
+        try {
+            OutputStream os = response.getOutputStream();
+            os.write(audio);
+            os.flush();
+            os.close();
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Could not write audio to response: ", e);
+        }
+    }
+
+    /**
+     * Writes already encoded WAV audio to the response of a <code>GET</code> or <code>HEAD</code> request,
+     * honouring a single byte range of the <code>Range</code> header and the <code>If-None-Match</code> and
+     * <code>If-Range</code> validators. The entity tag is derived from the content of the audio.
+     * @param request current request.
+     * @param response current response.
+     * @param audio encoded audio.
+     */
+    public static void writeAudio(HttpServletRequest request, HttpServletResponse response, byte[] audio) {
+        CRC32 crc = new CRC32();
+        crc.update(audio, 0, audio.length);
+        String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(audio.length) + "\"";
+
+        // The validators are useless if the audio is not even kept for the playback
+        response.setHeader("Cache-Control", "private,no-cache");
+        response.setHeader("ETag", etag);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        int from = 0;
+        int to = audio.length - 1;
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.trim().equals(etag))) {
+            int[] bounds = parseRange(range, audio.length);
+            if (bounds == null) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range", "bytes */" + audio.length);
+                return;
+            }
+            if (bounds.length == 2) {
+                from = bounds[0];
+                to = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + from + "-" + to + "/" + audio.length);
+            }
+        }
 
+        response.setContentType("audio/wav");
+        response.setContentLength(to - from + 1);
+        try {
             OutputStream os = response.getOutputStream();
-            os.write(baos.toByteArray());
+            os.write(audio, from, to - from + 1);
             os.flush();
             os.close();
         } catch (IOException e) {
             LOG.log(Level.SEVERE, "Could not write audio to response: ", e);
         }
     }
+
+    /**
+     * Parses the value of a <code>Range</code> header.
+     * @return the first and the last byte of a single satisfiable range, an empty array if the header
+     * should be ignored, or <code>null</code> if the range is not satisfiable.
+     */
+    private static int[] parseRange(String range, int length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            // Other units and multiple ranges are served as a whole
+            return new int[0];
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new int[0];
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long from;
+            long to;
+            if (first.isEmpty()) {
+                // The last bytes
+                long suffix = Long.parseLong(last);
+                if (suffix == 0) {
+                    return null;
+                }
+                from = Math.max(0, length - suffix);
+                to = length - 1;
+            } else {
+                from = Long.parseLong(first);
+                to = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (to < from) {
+                    // Invalid, thus ignored
+                    return new int[0];
+                }
+                to = Math.min(to, length - 1);
+            }
+            if (from >= length) {
+                return null;
+            }
+            return new int[]{(int) from, (int) to};
+        } catch (NumberFormatException e) {
+            return new int[0];
+        }
+    }
+
+    /**
+     * Encodes audio to WAV with the default {@link WavEncoder}.
+     * @param sample determined audio.
+     * @return encoded audio.
+     * @throws IOException if the audio could not be encoded.
+     */
+    public static byte[] encodeAudio(Sample sample) throws IOException {
+        return WAV_ENCODER.encode(sample);
+    }
 }
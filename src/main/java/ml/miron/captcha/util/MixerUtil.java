@@ -2,15 +2,16 @@ package ml.miron.captcha.util;
 
 import ml.miron.captcha.audio.Sample;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.util.Arrays;
+import java.nio.ShortBuffer;
+import java.util.Collections;
 import java.util.List;
 
-import javax.sound.sampled.AudioInputStream;
-
 /**
  * Helper class for operating with {@link ml.miron.captcha.audio.Sample}.
+ * <p>
+ * The samples are processed as 16-bit PCM data. Appending, scaling, mixing and clipping
+ * are done in a single pass which writes the resulting buffer directly.
+ * </p>
  *
  * @author <a href="mailto:james.childers@gmail.com">James Childers</a>
  * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
@@ -26,25 +27,15 @@ public final class MixerUtil {
      * @return appended sample.
      */
     public static Sample append(List<Sample> samples) {
-        if (samples.isEmpty()) {
-            return buildSample(0, new double[0]);
-        }
-
-        int sampleCount = 0;
-
-        // append voices to each other
-        double[] first = samples.get(0).getInterleavedSamples();
-        sampleCount += samples.get(0).getSampleCount();
-
-        double[][] samplesArray = new double[samples.size() - 1][];
-        for (int i = 0; i < samplesArray.length; i++) {
-            samplesArray[i] = samples.get(i + 1).getInterleavedSamples();
-            sampleCount += samples.get(i + 1).getSampleCount();
+        short[] appended = new short[length(samples)];
+        int offset = 0;
+        for (Sample sample : samples) {
+            ShortBuffer pcm = sample.getPcm();
+            int length = pcm.remaining();
+            pcm.get(appended, offset, length);
+            offset += length;
         }
-
-        double[] appended = concatAll(first, samplesArray);
-
-        return buildSample(sampleCount, appended);
+        return new Sample(ShortBuffer.wrap(appended));
     }
 
     /**
@@ -56,47 +47,54 @@ public final class MixerUtil {
      * @return mixed sample.
      */
     public static Sample mix(Sample sample1, double volAdj1, Sample sample2, double volAdj2) {
-        double[] samples1 = sample1.getInterleavedSamples();
-        double[] samples2 = sample2.getInterleavedSamples();
-
-        double[] mixed = mix(samples1, volAdj1, samples2, volAdj2);
-
-        return buildSample(sample1.getSampleCount(), mixed);
+        return mix(Collections.singletonList(sample1), volAdj1, sample2, volAdj2);
     }
 
-    private static double[] concatAll(double[] first, double[]... rest) {
-        int totalLength = first.length;
-        for (double[] array : rest) {
-            totalLength += array.length;
-        }
-        double[] result = Arrays.copyOf(first, totalLength);
-        int offset = first.length;
-        for (double[] array : rest) {
-            System.arraycopy(array, 0, result, offset, array.length);
-            offset += array.length;
-        }
-        return result;
-    }
-
-    private static double[] mix(double[] sample1, double volAdj1, double[] sample2, double volAdj2) {
-        for (int i = 0; i < sample1.length; i++) {
-            if (i >= sample2.length) {
-                sample1[i] = 0;
-                break;
+    /**
+     * Glues samples together and mixes the result with another sample. The result is as long
+     * as the glued samples; beyond the end of the other sample only the glued samples are heard.
+     * @param samples list of {@link ml.miron.captcha.audio.Sample}.
+     * @param volAdj1 the volume of glued samples.
+     * @param sample2 the sample mixed into the glued ones.
+     * @param volAdj2 the volume of <code>sample2</code>.
+     * @return mixed sample.
+     */
+    public static Sample mix(List<Sample> samples, double volAdj1, Sample sample2, double volAdj2) {
+        short[] mixed = new short[length(samples)];
+        ShortBuffer pcm2 = sample2.getPcm();
+        int length2 = pcm2.remaining();
+        int offset = 0;
+        for (Sample sample : samples) {
+            ShortBuffer pcm1 = sample.getPcm();
+            for (int i = 0, n = pcm1.remaining(); i < n; i++, offset++) {
+                double value = pcm1.get(i) * volAdj1;
+                if (offset < length2) {
+                    value += pcm2.get(offset) * volAdj2;
+                }
+                mixed[offset] = clip(value);
             }
-            sample1[i] = (sample1[i] * volAdj1) + (sample2[i] * volAdj2);
         }
-        return sample1;
+        return new Sample(ShortBuffer.wrap(mixed));
     }
 
-    private static Sample buildSample(long sampleCount, double[] sample) {
-        AudioInputStream ais = buildStream(sampleCount, sample);
-        return new Sample(ais);
+    private static int length(List<Sample> samples) {
+        long length = 0;
+        for (Sample sample : samples) {
+            length += sample.getSampleCount();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many samples: " + length);
+        }
+        return (int) length;
     }
 
-    private static AudioInputStream buildStream(long sampleCount, double[] sample) {
-        byte[] buffer = Sample.asByteArray(sampleCount, sample);
-        InputStream bais = new ByteArrayInputStream(buffer);
-        return new AudioInputStream(bais, Sample.SC_AUDIO_FORMAT, sampleCount);
+    private static short clip(double value) {
+        if (value >= Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (value <= Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) value;
     }
 }
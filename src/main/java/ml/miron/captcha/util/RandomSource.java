@@ -0,0 +1,137 @@
+package ml.miron.captcha.util;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * Source of randomness for producers and renderers.
+ * <p>
+ * Every thread gets its own generators, or its own state of them, so no state is shared between threads:
+ * </p>
+ * <ul>
+ *     <li>{@link #secure()} is a cryptographically strong generator for anything which must not
+ *     be predictable, i.e. the answers;</li>
+ *     <li>{@link #fast()} is a cheap xorshift generator for the cosmetic choices: colors, fonts,
+ *     distortions, noises and voices.</li>
+ * </ul>
+ * <p>
+ * A source created by {@link #seeded(long)} is deterministic: both generators of every thread
+ * start from the seed, so a single thread always gets the same sequence. It is intended for
+ * benchmarks and tests and must never be used in production.
+ * </p>
+ * <p>
+ * The threads only keep JDK objects, {@link SecureRandom}s and the <code>long[]</code> states of the
+ * xorshift generators, so that the container threads do not keep the classes of an undeployed
+ * application loaded.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class RandomSource {
+
+    private static final RandomSource DEFAULT = new RandomSource(false, 0L);
+    // Keeps the two generators of a seeded source apart
+    private static final long FAST_SEED_MIX = 0x9E3779B97F4A7C15L;
+
+    // Null if the source is seeded
+    private final ThreadLocal<Random> secure;
+    private final Random seededSecure;
+    private final Random fast;
+
+    private RandomSource(boolean seeded, long seed) {
+        if (seeded) {
+            secure = null;
+            seededSecure = new FastRandom(true, seed);
+            fast = new FastRandom(true, seed ^ FAST_SEED_MIX);
+        } else {
+            secure = new ThreadLocal<Random>() {
+                @Override
+                protected Random initialValue() {
+                    return new SecureRandom();
+                }
+            };
+            seededSecure = null;
+            fast = new FastRandom(false, 0L);
+        }
+    }
+
+    /**
+     * Returns the shared source backed by {@link SecureRandom}.
+     * @return see description.
+     */
+    public static RandomSource getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a deterministic source with the given seed.
+     * @param seed seed of the generators.
+     * @return see description.
+     */
+    public static RandomSource seeded(long seed) {
+        return new RandomSource(true, seed);
+    }
+
+    /**
+     * Returns the cryptographically strong generator of the current thread.
+     * @return see description.
+     */
+    public Random secure() {
+        return secure != null ? secure.get() : seededSecure;
+    }
+
+    /**
+     * Returns the fast generator of the current thread.
+     * @return see description.
+     */
+    public Random fast() {
+        return fast;
+    }
+
+    private static long nextSeed() {
+        return Thread.currentThread().getId() * FAST_SEED_MIX;
+    }
+
+    private static long nonZero(long seed) {
+        // Zero is the only state xorshift never leaves
+        return seed != 0 ? seed : FAST_SEED_MIX;
+    }
+
+    /**
+     * Unsynchronized xorshift64* generator, shared by the threads, each of which has a state of its own.
+     */
+    private static final class FastRandom extends Random {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ThreadLocal<long[]> state;
+
+        FastRandom(final boolean seeded, final long seed) {
+            state = new ThreadLocal<long[]>() {
+                @Override
+                protected long[] initialValue() {
+                    return new long[]{nonZero(seeded ? seed : System.nanoTime() ^ nextSeed())};
+                }
+            };
+        }
+
+        @Override
+        public void setSeed(long seed) {
+            // Called by the constructor of Random before the state exists
+            if (state != null) {
+                state.get()[0] = nonZero(seed);
+            }
+        }
+
+        @Override
+        protected int next(int bits) {
+            long[] s = state.get();
+            long x = s[0];
+            x ^= x >>> 12;
+            x ^= x << 25;
+            x ^= x >>> 27;
+            s[0] = x;
+            return (int) ((x * 0x2545F4914F6CDD1DL) >>> (64 - bits));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ml.miron.captcha.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Helper class for direct access to the pixels of {@link BufferedImage}.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class RasterUtil {
+
+    private RasterUtil() {
+    }
+
+    /**
+     * Returns the array backing the given image, if the image stores one packed
+     * <code>int</code> pixel per element in row-major order without padding
+     * (<code>TYPE_INT_ARGB</code>, <code>TYPE_INT_ARGB_PRE</code> or <code>TYPE_INT_RGB</code>).
+     * The pixel at (x, y) is <code>pixels[y * width + x]</code>.
+     * @param image the instance of {@link BufferedImage}.
+     * @return the backing array or <code>null</code> if the image has another layout.
+     */
+    public static int[] getPixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_ARGB_PRE
+                && type != BufferedImage.TYPE_INT_RGB) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        if (!(buffer instanceof DataBufferInt) || buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != image.getWidth()) {
+            return null;
+        }
+        return ((DataBufferInt) buffer).getData();
+    }
+}
@@ -0,0 +1,186 @@
+package ml.miron.captcha.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs per-pixel stages of large images on a pool of daemon threads.
+ * <p>
+ * The rows of an image with at least {@link #getThreshold()} pixels are split into tiles,
+ * one per available processor, and the tiles are processed concurrently; the calling thread
+ * takes the last tile. Smaller images are processed by the calling thread alone. The tasks must
+ * only write the rows they are given, so that the result does not depend on the tiling.
+ * </p>
+ * <p>
+ * Every executor has its own threshold and pool, which is created on first use and stopped by
+ * {@link #shutdown()}; afterwards all images are processed by the calling thread. The executor
+ * returned by {@link #getDefault()} never tiles and thus never starts a pool.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class TileExecutor {
+
+    /**
+     * Threshold which disables the tiling.
+     */
+    public static final int DISABLED = Integer.MAX_VALUE;
+
+    // Thinner tiles cost more in scheduling than they save
+    private static final int MIN_TILE_ROWS = 16;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final ThreadLocal<Boolean> WORKER = new ThreadLocal<Boolean>();
+    private static final TileExecutor DEFAULT = new TileExecutor(DISABLED);
+
+    private final int threshold;
+    // Guarded by this
+    private ExecutorService executor;
+    private boolean shutdown;
+
+    /**
+     * Creates a {@link TileExecutor} which tiles images of at least the given number of pixels.
+     * @param threshold number of pixels, or {@link #DISABLED}.
+     */
+    public TileExecutor(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive, got " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the shared executor which processes all images by the calling thread.
+     * @return see description.
+     */
+    public static TileExecutor getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Task which processes a range of rows.
+     */
+    public interface RowTask {
+
+        /**
+         * Processes the rows from <code>fromRow</code> inclusive to <code>toRow</code> exclusive.
+         * @param fromRow first row.
+         * @param toRow row after the last one.
+         */
+        void run(int fromRow, int toRow);
+    }
+
+    /**
+     * Returns the minimum number of pixels of a tiled image.
+     * @return see description.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Runs the task over all rows of an image, split into tiles if the image is large enough.
+     * Returns when every row is processed.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param task the instance of {@link RowTask}.
+     */
+    public void forRows(int width, int height, final RowTask task) {
+        int tiles = Math.min(PARALLELISM, height / MIN_TILE_ROWS);
+        // A worker must not wait for other workers
+        ExecutorService pool = tiles < 2 || (long) width * height < threshold || WORKER.get() != null
+                ? null : getExecutor();
+        if (pool == null) {
+            task.run(0, height);
+            return;
+        }
+
+        Future<?>[] futures = new Future<?>[tiles - 1];
+        try {
+            for (int i = 0; i < futures.length; i++) {
+                final int fromRow = height * i / tiles;
+                final int toRow = height * (i + 1) / tiles;
+                futures[i] = pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run(fromRow, toRow);
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            // Shut down meanwhile: the rows of the tiles which were not submitted are left to this thread
+            for (int i = 0; i < futures.length; i++) {
+                if (futures[i] == null) {
+                    task.run(height * i / tiles, height * (i + 1) / tiles);
+                }
+            }
+        }
+        task.run(height * (tiles - 1) / tiles, height);
+
+        for (Future<?> future : futures) {
+            if (future == null) {
+                continue;
+            }
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the tiles.", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Stops the threads of the pool, e.g. when the web application is stopped, so that they do not keep its
+     * classes loaded. The tasks which are running are completed; all later images are processed by the calling
+     * thread.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the pool, creating it on first use, or <code>null</code> if the executor is shut down.
+     */
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null && !shutdown) {
+            executor = Executors.newFixedThreadPool(PARALLELISM, new WorkerFactory());
+        }
+        return executor;
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    WORKER.set(Boolean.TRUE);
+                    r.run();
+                }
+            }, "captcha-tile-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
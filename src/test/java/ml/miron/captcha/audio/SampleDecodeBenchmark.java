@@ -0,0 +1,60 @@
+package ml.miron.captcha.audio;
+
+import java.util.Random;
+
+import ml.miron.captcha.util.FileUtil;
+
+/**
+ * Measures the decoding of {@link Sample}s: {@link Sample#decodeBytes(byte[], double[])} on its own, and
+ * the reading and decoding of all bundled voices.
+ * <p>
+ * Run with <code>java -cp ... ml.miron.captcha.audio.SampleDecodeBenchmark</code>.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class SampleDecodeBenchmark {
+
+    private static final String VOICES = "/META-INF/resources/smartcaptcha/sounds/en/numbers/";
+    private static final String[] NAMES = {"alex", "bruce", "fred", "ralph", "kathy", "vicki", "victoria"};
+    private static final int ROUNDS = 5;
+    private static final int DECODES = 2000;
+    private static final int READS = 10;
+
+    private SampleDecodeBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        Sample voice = FileUtil.readSample(VOICES + "0-" + NAMES[0] + ".wav");
+        byte[] bytes = new byte[(int) voice.getSampleCount() * 2];
+        new Random(1).nextBytes(bytes);
+        double[] samples = new double[bytes.length / 2];
+
+        // The sum keeps the decoding from being optimized away
+        double sum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < DECODES; i++) {
+                voice.decodeBytes(bytes, samples);
+                sum += samples[i % samples.length];
+            }
+            double decode = (System.nanoTime() - start) / ((double) DECODES * samples.length);
+
+            start = System.nanoTime();
+            long count = 0;
+            for (int i = 0; i < READS; i++) {
+                for (int digit = 0; digit < 10; digit++) {
+                    for (String name : NAMES) {
+                        double[] decoded = FileUtil.readSample(VOICES + digit + "-" + name + ".wav")
+                                .getInterleavedSamples();
+                        count += decoded.length;
+                        sum += decoded[decoded.length / 2];
+                    }
+                }
+            }
+            double read = (System.nanoTime() - start) / (double) count;
+            System.out.printf("decodeBytes %.2f ns/sample, voices %.1f ns/sample%n", decode, read);
+        }
+        System.out.println("checksum " + sum);
+    }
+}
@@ -0,0 +1,132 @@
+package ml.miron.captcha.image.encoder;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import ml.miron.captcha.image.Captcha;
+import ml.miron.captcha.image.background.GradiatedBackground;
+import ml.miron.captcha.image.producer.CurvedLineNoiseProducer;
+import ml.miron.captcha.image.renderer.ColoredEdgesWordRenderer;
+import ml.miron.captcha.image.renderer.FishEyeRenderer;
+import ml.miron.captcha.util.RandomSource;
+
+/**
+ * Compares the time and the size of {@link PngEncoder} with {@link ImageIO} on the captchas of
+ * {@link ml.miron.captcha.servlet.CaptchaServlet} with its default settings.
+ * <p>
+ * Run with <code>java -cp ... ml.miron.captcha.image.encoder.PngEncoderBenchmark [filter:compression ...]</code>,
+ * e.g. <code>NONE:4 PAETH:9 ADAPTIVE:6</code>; without arguments the default settings are measured.
+ * </p>
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public final class PngEncoderBenchmark {
+
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 50;
+    private static final int IMAGES = 20;
+    private static final int WARMUP = 100;
+    private static final int ITERATIONS = 100;
+
+    private PngEncoderBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        BufferedImage[] images = createImages();
+        if (args.length == 0) {
+            args = new String[]{PngEncoder.DEFAULT_FILTER + ":" + PngEncoder.DEFAULT_COMPRESSION};
+        }
+
+        for (String arg : args) {
+            String[] settings = arg.split(":");
+            PngEncoder encoder = new PngEncoder(Integer.parseInt(settings[1]), PngEncoder.Filter.valueOf(settings[0]));
+            try {
+                for (BufferedImage image : images) {
+                    check(image, encoder.encode(image));
+                }
+                for (int i = 0; i < WARMUP; i++) {
+                    for (BufferedImage image : images) {
+                        encoder.encode(image);
+                    }
+                }
+                long start = System.nanoTime();
+                long size = 0;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    for (BufferedImage image : images) {
+                        size += encoder.encode(image).length;
+                    }
+                }
+                report(arg, start, size);
+            } finally {
+                encoder.close();
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < WARMUP; i++) {
+            for (BufferedImage image : images) {
+                out.reset();
+                ImageIO.write(image, "png", out);
+            }
+        }
+        long start = System.nanoTime();
+        long size = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (BufferedImage image : images) {
+                out.reset();
+                ImageIO.write(image, "png", out);
+                size += out.size();
+            }
+        }
+        report("ImageIO", start, size);
+    }
+
+    /**
+     * Renders captchas the way the servlet does by default.
+     */
+    private static BufferedImage[] createImages() {
+        List<Font> fonts = Arrays.asList(new Font("Geneva", Font.ITALIC, HEIGHT),
+                new Font("Courier", Font.BOLD, HEIGHT), new Font("Arial", Font.BOLD, HEIGHT));
+        List<Color> colors = Arrays.asList(Color.BLUE, Color.RED, Color.GREEN);
+        RandomSource random = RandomSource.getDefault();
+        BufferedImage[] images = new BufferedImage[IMAGES];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new Captcha.Builder(WIDTH, HEIGHT)
+                    .gimp(new FishEyeRenderer(Color.BLACK, Color.BLACK, random))
+                    .addNoise(new CurvedLineNoiseProducer(Color.BLACK, 3.0f, 1, random))
+                    .addBackground(new GradiatedBackground(Color.DARK_GRAY, Color.WHITE))
+                    .addText(new ColoredEdgesWordRenderer(colors, fonts))
+                    .build()
+                    .getImage();
+        }
+        return images;
+    }
+
+    /**
+     * Makes sure that the encoded image is decoded to the same pixels.
+     */
+    private static void check(BufferedImage image, byte[] png) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] expected = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] actual = decoded.getRGB(0, 0, width, height, null, 0, width);
+        if (!Arrays.equals(expected, actual)) {
+            throw new IllegalStateException("The encoded image differs from the original one");
+        }
+    }
+
+    private static void report(String name, long start, long size) {
+        long count = (long) ITERATIONS * IMAGES;
+        System.out.printf("%-12s %8.1f us %8d bytes%n", name, (System.nanoTime() - start) / 1000.0 / count,
+                size / count);
+    }
+}
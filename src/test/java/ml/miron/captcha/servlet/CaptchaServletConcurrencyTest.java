@@ -0,0 +1,160 @@
+package ml.miron.captcha.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import ml.miron.captcha.util.CaptchaServletUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Serves captchas to many sessions at once and checks that every request succeeds
+ * and that a session keeps the same answer for the image and the audio.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+public class CaptchaServletConcurrencyTest {
+
+    private static final Logger LOG = Logger.getLogger(CaptchaServletConcurrencyTest.class.getName());
+    private static final Map<String, String> NO_PARAMS = Collections.emptyMap();
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] RIFF = {'R', 'I', 'F', 'F'};
+    private static final int THREADS = 8;
+    private static final int SESSIONS_PER_THREAD = 4;
+    private static final int REQUESTS_PER_SESSION = 3;
+
+    private CaptchaServlet imageServlet;
+    private AudioCaptchaServlet audioServlet;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("memo-size", "1000");
+        params.put("canvas-pool-size", String.valueOf(THREADS));
+        ServletContext context = ServletMocks.context(params);
+        imageServlet = new CaptchaServlet();
+        imageServlet.init(ServletMocks.config(context, "CaptchaServlet", NO_PARAMS));
+        audioServlet = new AudioCaptchaServlet();
+        audioServlet.init(ServletMocks.config(context, "AudioCaptchaServlet", NO_PARAMS));
+    }
+
+    @After
+    public void tearDown() {
+        audioServlet.destroy();
+        imageServlet.destroy();
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        run(THREADS);
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        // Warms up, so that the single thread does not pay for the class loading and compilation
+        run(THREADS);
+        long single = run(1);
+        long parallel = run(THREADS);
+        int processors = Runtime.getRuntime().availableProcessors();
+        LOG.info(String.format("%d requests per second by 1 thread, %d by %d threads on %d processors",
+                single, parallel, THREADS, processors));
+        // A single processor can not serve more in parallel, it only has to keep up
+        assumeTrue(processors > 1);
+        assertTrue("Parallel requests are not faster: " + parallel + " <= " + single, parallel > single);
+    }
+
+    /**
+     * Serves the sessions from the given number of threads at once and returns the requests per second.
+     */
+    private long run(int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final String prefix = threads + "-" + t + "-";
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int requests = 0;
+                        for (int s = 0; s < SESSIONS_PER_THREAD; s++) {
+                            requests += serve(ServletMocks.session(prefix + s));
+                        }
+                        return requests;
+                    }
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            int requests = 0;
+            for (Future<Integer> result : results) {
+                requests += result.get(5, TimeUnit.MINUTES);
+            }
+            return requests * TimeUnit.SECONDS.toNanos(1) / Math.max(1, System.nanoTime() - begin);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Requests the image and the audio of the session several times and returns the number of requests.
+     */
+    private int serve(HttpSession session) throws Exception {
+        byte[] firstImage = null;
+        String answer = null;
+        for (int i = 0; i < REQUESTS_PER_SESSION; i++) {
+            ServletMocks.Response image = new ServletMocks.Response();
+            imageServlet.service(ServletMocks.get(session, NO_PARAMS), image.proxy());
+            assertEquals(HttpServletResponse.SC_OK, image.getStatus());
+            assertEquals("image/png", image.getContentType());
+            assertStartsWith(PNG_SIGNATURE, image.getBody());
+
+            String current = (String) session.getAttribute(CaptchaServletUtil.CAPTCHA_ATTRIBUTE);
+            assertNotNull(current);
+            assertTrue(current, current.matches("\\d{6}"));
+            if (answer == null) {
+                answer = current;
+                firstImage = image.getBody();
+            } else {
+                assertEquals(answer, current);
+                // Reloads are served from the memo
+                assertArrayEquals(firstImage, image.getBody());
+            }
+
+            ServletMocks.Response audio = new ServletMocks.Response();
+            audioServlet.service(ServletMocks.get(session, NO_PARAMS), audio.proxy());
+            assertEquals(HttpServletResponse.SC_OK, audio.getStatus());
+            assertStartsWith(RIFF, audio.getBody());
+            assertEquals(answer, session.getAttribute(CaptchaServletUtil.CAPTCHA_ATTRIBUTE));
+        }
+        return 2 * REQUESTS_PER_SESSION;
+    }
+
+    private static void assertStartsWith(byte[] prefix, byte[] bytes) {
+        assertTrue("Response is too short", bytes.length > prefix.length);
+        assertArrayEquals(prefix, Arrays.copyOf(bytes, prefix.length));
+    }
+}
@@ -0,0 +1,218 @@
+package ml.miron.captcha.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal in-memory servlet container objects for the servlet tests.
+ *
+ * @author <a href="mailto:emironen0@gmail.com">Evgeny Mironenko</a>
+ */
+final class ServletMocks {
+
+    private ServletMocks() {
+    }
+
+    /**
+     * Creates a servlet context with the given context-params.
+     */
+    static ServletContext context(final Map<String, String> params) {
+        final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        return proxy(ServletContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getInitParameter")) {
+                    return params.get(args[0]);
+                } else if (name.equals("getInitParameterNames")) {
+                    return Collections.enumeration(params.keySet());
+                } else if (name.equals("getAttribute")) {
+                    return attributes.get(args[0]);
+                } else if (name.equals("setAttribute")) {
+                    attributes.put((String) args[0], args[1]);
+                } else if (name.equals("removeAttribute")) {
+                    attributes.remove(args[0]);
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates the configuration of a servlet with the given init-params.
+     */
+    static ServletConfig config(final ServletContext context, final String servletName,
+                                final Map<String, String> params) {
+        return proxy(ServletConfig.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getServletContext")) {
+                    return context;
+                } else if (name.equals("getServletName")) {
+                    return servletName;
+                } else if (name.equals("getInitParameter")) {
+                    return params.get(args[0]);
+                } else if (name.equals("getInitParameterNames")) {
+                    return Collections.enumeration(params.keySet());
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates a session with the given id.
+     */
+    static HttpSession session(final String id) {
+        final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        return proxy(HttpSession.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getId")) {
+                    return id;
+                } else if (name.equals("getAttribute")) {
+                    return attributes.get(args[0]);
+                } else if (name.equals("setAttribute")) {
+                    attributes.put((String) args[0], args[1]);
+                } else if (name.equals("removeAttribute")) {
+                    attributes.remove(args[0]);
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Creates a GET request of the session with the given parameters.
+     */
+    static HttpServletRequest get(final HttpSession session, final Map<String, String> params) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getSession")) {
+                    if (session == null) {
+                        throw new IllegalStateException("The request must not create a session.");
+                    }
+                    return session;
+                } else if (name.equals("getMethod")) {
+                    return "GET";
+                } else if (name.equals("getProtocol")) {
+                    return "HTTP/1.1";
+                } else if (name.equals("getParameter")) {
+                    return params.get(args[0]);
+                } else if (name.equals("getAttribute")) {
+                    return attributes.get(args[0]);
+                } else if (name.equals("setAttribute")) {
+                    attributes.put((String) args[0], args[1]);
+                } else if (name.equals("getDateHeader")) {
+                    return -1L;
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Response which keeps the status, the headers and the body.
+     */
+    static final class Response {
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private int status = HttpServletResponse.SC_OK;
+        private String contentType;
+
+        HttpServletResponse proxy() {
+            return ServletMocks.proxy(HttpServletResponse.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("getOutputStream")) {
+                        return new ServletOutputStream() {
+                            @Override
+                            public void write(int b) {
+                                body.write(b);
+                            }
+
+                            @Override
+                            public void write(byte[] b, int off, int len) {
+                                body.write(b, off, len);
+                            }
+
+                            @Override
+                            public boolean isReady() {
+                                return true;
+                            }
+
+                            @Override
+                            public void setWriteListener(WriteListener writeListener) {
+                            }
+                        };
+                    } else if (name.equals("setStatus") || name.equals("sendError")) {
+                        status = (Integer) args[0];
+                    } else if (name.equals("setHeader")) {
+                        headers.put((String) args[0], (String) args[1]);
+                    } else if (name.equals("containsHeader")) {
+                        return headers.containsKey(args[0]);
+                    } else if (name.equals("setContentType")) {
+                        contentType = (String) args[0];
+                    } else if (name.equals("getCharacterEncoding")) {
+                        return "UTF-8";
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        byte[] getBody() {
+            return body.toByteArray();
+        }
+    }
+}